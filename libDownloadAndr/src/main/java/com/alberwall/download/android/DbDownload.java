@@ -26,7 +26,7 @@ import com.alberwall.downloader.DownloadRequest;
 import com.alberwall.downloader.FileBlock;
 import com.alberwall.downloader.FileBlockRequest;
 import com.alberwall.downloader.Source;
-import com.alberwall.downloader.db.DownloadDatabase;
+import com.alberwall.downloader.db.BatchProgressDatabase;
 import com.alberwall.downloader.http.HttpParameters;
 import com.alberwall.downloader.http.HttpSource;
 import com.alberwall.greendao.DaoMaster;
@@ -44,7 +44,7 @@ import java.util.Map;
 
 import static com.alberwall.download.android.FileBlockRequestColumn.PROTOCOL_HTTP;
 
-public class DbDownload implements DownloadDatabase {
+public class DbDownload implements BatchProgressDatabase {
     private final Context mAppContext;
     private boolean mInitialized = false;
     private AwDownloader mDownloader;
@@ -200,8 +200,8 @@ public class DbDownload implements DownloadDatabase {
         FileBlock fb = br.fileBlock;
         return new FileBlockRequestColumn(
                 br.rawRequest.id + "-" + fb.blockIndex, br.rawRequest.id,
-                convertToString(createSourceBean(fb.source)),
-                fb.blockIndex, fb.start, fb.end, br.getDownloadedBytes(), -1
+                convertToString(createSourceBean(fb.getSource())),
+                fb.blockIndex, fb.start, fb.getEnd(), br.getDownloadedBytes(), -1
         );
     }
 
@@ -271,6 +271,20 @@ public class DbDownload implements DownloadDatabase {
         mBlockRequestDao.insertOrReplaceInTx(col);
     }
 
+    @Override
+    public void updateFileBlockProgress(List<FileBlockRequest> reqs, long[] downloadedBytes, long currentTime) {
+        if (null == reqs || reqs.isEmpty()) return;
+
+        List<FileBlockRequestColumn> cols = new ArrayList<>(reqs.size());
+        for (int i = 0; i < reqs.size(); i++) {
+            FileBlockRequestColumn col = convertFileBlockRequest(reqs.get(i));
+            col.downloadedBytes = downloadedBytes[i];
+            col.updatedTime = currentTime;
+            cols.add(col);
+        }
+        mBlockRequestDao.insertOrReplaceInTx(cols);
+    }
+
     private static List<SourceBean> convertStringToSourceList(String strSource) {
         try {
             return new Gson().fromJson(strSource, new TypeToken<List<SourceBean>>() {
@@ -16,16 +16,31 @@
 
 package com.alberwall.downloader;
 
+import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.UiThread;
 
 import com.alberwall.downloader.db.DownloadDatabase;
 import com.alberwall.downloader.db.NoDatabase;
+import com.alberwall.downloader.http.ConnectionPool;
+import com.alberwall.downloader.http.HTTP;
+import com.alberwall.downloader.metrics.Metrics;
+import com.alberwall.downloader.metrics.MetricsExporter;
+import com.alberwall.downloader.trace.Tracer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 @SuppressWarnings("WeakerAccess")
 public class AwDownloader {
     private final Dispatcher mDispatcher;
     private final DownloadDatabase mdb;
+    private final ConnectionPool mConnectionPool;
+    private final BufferPool mBufferPool;
+    private final RateLimiter mRateLimiter;
+    private final Metrics mMetrics;
 
     public final int connectTimeout;
     public final int readTimeout;
@@ -33,10 +48,31 @@ public class AwDownloader {
     public final int bufferSize;
 
     public final int threadCount;
+    public final int prepareThreadCount;
+    public final int prepareLookahead;
     public final int nThreadsOfRequest;
     public final int maxTaskCount;
     public final int minFileBlockSize;
     public final int maxFileBlockCnt;
+    public final boolean adaptiveConnections;
+    public final boolean memoryMappedOutput;
+    public final int preallocation;
+    public final boolean writeBehind;
+    public final int writeBehindQueueSize;
+    public final int durability;
+    public final long progressInterval;
+    public final long progressStep;
+    public final Executor deliveryExecutor;
+    public final Tracer tracer;
+    public final List<Interceptor> interceptors;
+    public final boolean workStealing;
+    public final boolean nioEngine;
+    public final int nioThreadCount;
+    public final int maxNioTransfers;
+    public final int maxConnectionsPerHost;
+    public final boolean virtualThreads;
+    public final boolean probeWithRangedGet;
+    public final boolean hedging;
 
     public final boolean enableLogFile;
     public final int logLevel;
@@ -57,11 +93,40 @@ public class AwDownloader {
         bufferSize = builder.bufferSize;
         minFileBlockSize = builder.minFileBlockSize;
         maxFileBlockCnt = builder.maxFileBlockCnt;
+        adaptiveConnections = builder.adaptiveConnections;
+        memoryMappedOutput = builder.memoryMappedOutput;
+        preallocation = builder.preallocation;
+        writeBehind = builder.writeBehind;
+        writeBehindQueueSize = builder.writeBehindQueueSize;
+        durability = builder.durability;
+        progressInterval = builder.progressInterval;
+        progressStep = builder.progressStep;
+        deliveryExecutor = builder.deliveryExecutor;
+        tracer = builder.tracer;
+        interceptors = Collections.unmodifiableList(new ArrayList<>(builder.interceptors));
+        workStealing = builder.workStealing;
+        nioEngine = builder.nioEngine;
+        nioThreadCount = builder.nioThreadCount;
+        maxNioTransfers = builder.maxNioTransfers;
+        maxConnectionsPerHost = builder.maxConnectionsPerHost;
+        virtualThreads = builder.virtualThreads;
+        probeWithRangedGet = builder.probeWithRangedGet;
+        hedging = builder.hedging;
 
         threadCount = builder.threadCount;
+        prepareThreadCount = builder.prepareThreadCount;
+        prepareLookahead = builder.prepareLookahead;
         nThreadsOfRequest = builder.nThreadsOfRequest;
         maxTaskCount = builder.maxTaskCount;
 
+        mRateLimiter = new RateLimiter(builder.maxBytesPerSecond);
+        mConnectionPool = new ConnectionPool(builder.maxIdleConnectionsPerHost, builder.keepAliveDuration);
+        // large enough for the head of a response read by the nio engine.
+        mBufferPool = new BufferPool(Math.max(bufferSize, HTTP.MAX_HEAD_SIZE), builder.maxIdleBufferBytes);
+        mMetrics = new Metrics();
+        if (null != builder.metricsExporter) {
+            mMetrics.startExport(builder.metricsExporter, builder.metricsInterval);
+        }
         mDispatcher = new Dispatcher(this);
         mdb = builder.db;
     }
@@ -110,6 +175,7 @@ public class AwDownloader {
     public void shutdown() {
         dispatcher().cancelAll();
         dispatcher().shutdown();
+        mMetrics.shutdown();
     }
 
     Dispatcher dispatcher() {
@@ -120,6 +186,34 @@ public class AwDownloader {
         return mdb;
     }
 
+    /**
+     * Keep-alive connections shared by all requests, used by the nio engine and client.
+     */
+    public ConnectionPool connectionPool() {
+        return mConnectionPool;
+    }
+
+    /**
+     * Read buffers shared by the block tasks of all requests.
+     */
+    public BufferPool bufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Cap of all requests, which can be changed at any time, 0 for unlimited.
+     */
+    public RateLimiter rateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * Throughput, latencies and queues of all requests, see the names in {@link Metrics}.
+     */
+    public Metrics metrics() {
+        return mMetrics;
+    }
+
 
     public static class Builder {
         public DownloadDatabase db;
@@ -128,8 +222,11 @@ public class AwDownloader {
         private int readTimeout = TIMEOUT_READ;
         private int maxRetryTimes = MAX_RETRY_TIMES;
         private int bufferSize = BUFFER_SIZE;
+        private long maxIdleBufferBytes = MAX_IDLE_BUFFER_BYTES;
 
         private int threadCount = MAX_THREAD_COUNT;
+        private int prepareThreadCount = PREPARE_THREAD_COUNT;
+        private int prepareLookahead = PREPARE_LOOKAHEAD;
         private int nThreadsOfRequest = MAX_THREAD_COUNT_PER_REQUEST;
         private int maxTaskCount = MAX_TASK_COUNT;
 
@@ -138,6 +235,30 @@ public class AwDownloader {
         private String logPath = null;
         private int minFileBlockSize = MIN_FILE_BLOCK_SIZE;
         private int maxFileBlockCnt = MAX_FILE_BLOCK_CNT;
+        private boolean adaptiveConnections = false;
+        private boolean memoryMappedOutput = false;
+        private int preallocation = PREALLOCATE_NONE;
+        private boolean writeBehind = false;
+        private int writeBehindQueueSize = WRITE_BEHIND_QUEUE_SIZE;
+        private int durability = DURABILITY_PERIODIC;
+        private long progressInterval = PROGRESS_INTERVAL;
+        private long progressStep = 0;
+        private Executor deliveryExecutor = null;
+        private MetricsExporter metricsExporter = null;
+        private Tracer tracer = null;
+        private final List<Interceptor> interceptors = new ArrayList<>();
+        private long metricsInterval = METRICS_INTERVAL;
+        private boolean workStealing = false;
+        private boolean nioEngine = false;
+        private int nioThreadCount = NIO_THREAD_COUNT;
+        private int maxNioTransfers = MAX_NIO_TRANSFERS;
+        private int maxConnectionsPerHost = MAX_CONNECTIONS_PER_HOST;
+        private boolean virtualThreads = false;
+        private boolean probeWithRangedGet = false;
+        private boolean hedging = false;
+        private int maxIdleConnectionsPerHost = MAX_IDLE_CONNECTIONS_PER_HOST;
+        private long keepAliveDuration = KEEP_ALIVE_DURATION;
+        private long maxBytesPerSecond = 0;
 
         public Builder() {
         }
@@ -150,6 +271,9 @@ public class AwDownloader {
             if (nThreadsOfRequest > threadCount)
                 throw new IllegalArgumentException("Thread count is less than nThreadsOfRequest");
 
+            if (nioEngine && !interceptors.isEmpty())
+                throw new IllegalArgumentException("Interceptors can not be used with the nio engine");
+
             return new AwDownloader(this);
         }
 
@@ -186,6 +310,64 @@ public class AwDownloader {
             return this;
         }
 
+        /**
+         * Call the listeners on this executor instead of the download threads, e.g. the main
+         * thread. The events of a request keep their order, its progress events are merged
+         * while the listener falls behind.
+         */
+        public Builder deliveryExecutor(Executor executor) {
+            deliveryExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Deliver the progress every interval ms or every step bytes, whichever comes first,
+         * a threshold of 0 is not used. If both are 0, each read is delivered.
+         */
+        public Builder progressInterval(long interval, long step) {
+            if (interval < 0 || step < 0)
+                throw new IllegalArgumentException("Invalid progress interval: " + interval + ", " + step);
+            progressInterval = interval;
+            progressStep = step;
+            return this;
+        }
+
+        /**
+         * When the written bytes are synced to disk before the progress is saved:
+         * DURABILITY_NONE never, DURABILITY_PERIODIC (default) by each block every few seconds,
+         * DURABILITY_GROUP_COMMIT by one thread for all dirty files at once.
+         */
+        public Builder durability(@Durability int mode) {
+            if (mode < DURABILITY_NONE || mode > DURABILITY_GROUP_COMMIT)
+                throw new IllegalArgumentException("Invalid durability: " + mode);
+            durability = mode;
+            return this;
+        }
+
+        /**
+         * Hand the bytes read by blocking block tasks to a writer thread per disk, so that
+         * slow writes and syncs do not stall the connections.
+         * @param queueSize buffers queued for a disk before the readers wait
+         */
+        public Builder writeBehind(boolean enable, int queueSize) {
+            if (queueSize < 1)
+                throw new IllegalArgumentException("Invalid write behind queue size: " + queueSize);
+            writeBehind = enable;
+            writeBehindQueueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * Max bytes of idle read buffers kept for reuse, 0 to allocate a buffer for each block.
+         * It does not limit the buffers in use, see {@link BufferPool}.
+         */
+        public Builder maxIdleBufferBytes(long bytes) {
+            if (bytes < 0)
+                throw new IllegalArgumentException("Invalid max idle buffer bytes: " + bytes);
+            maxIdleBufferBytes = bytes;
+            return this;
+        }
+
         public Builder threadCount(int cnt) {
             if (cnt < 1)
                 throw new IllegalArgumentException("Invalid thread count: " + cnt);
@@ -193,10 +375,33 @@ public class AwDownloader {
             return this;
         }
 
-        public void nThreadsOfRequest(int cnt) {
+        /**
+         * Max requests being prepared at the same time, in priority order and limited
+         * by maxConnectionsPerHost for each host.
+         */
+        public Builder prepareThreadCount(int cnt) {
+            if (cnt < 1)
+                throw new IllegalArgumentException("Invalid prepare thread count: " + cnt);
+            prepareThreadCount = cnt;
+            return this;
+        }
+
+        /**
+         * Max requests being prepared or prepared but not downloading yet, so that the
+         * next requests are ready when a download thread is free.
+         */
+        public Builder prepareLookahead(int cnt) {
+            if (cnt < 1)
+                throw new IllegalArgumentException("Invalid prepare lookahead: " + cnt);
+            prepareLookahead = cnt;
+            return this;
+        }
+
+        public Builder nThreadsOfRequest(int cnt) {
             if (cnt <= 0)
                 throw new IllegalArgumentException("Invalid max thread count per request: " + cnt);
             nThreadsOfRequest = cnt;
+            return this;
         }
 
         public Builder maxTaskCount(int cnt) {
@@ -211,8 +416,150 @@ public class AwDownloader {
             return this;
         }
 
-        public void maxFileBlockCnt(int maxFileBlockCnt) {
+        public Builder maxFileBlockCnt(int maxFileBlockCnt) {
+            if (maxFileBlockCnt < 1)
+                throw new IllegalArgumentException("Invalid max file block count: " + maxFileBlockCnt);
             this.maxFileBlockCnt = maxFileBlockCnt;
+            return this;
+        }
+
+        /**
+         * How to reserve the disk space of a file whose length is known before downloading,
+         * one of PREALLOCATE_NONE (default), PREALLOCATE_SET_LENGTH, PREALLOCATE_ZERO_FILL
+         * and PREALLOCATE_NATIVE, which falls back to zero-fill if posix_fallocate is not available.
+         */
+        public Builder preallocation(@Preallocation int strategy) {
+            if (strategy < PREALLOCATE_NONE || strategy > PREALLOCATE_NATIVE)
+                throw new IllegalArgumentException("Invalid preallocation: " + strategy);
+            preallocation = strategy;
+            return this;
+        }
+
+        /**
+         * Write the blocks through memory-mapped windows of the temp file instead of write calls,
+         * for large files on fast disks. Not used if the length of a file is unknown.
+         */
+        public Builder memoryMappedOutput(boolean enable) {
+            memoryMappedOutput = enable;
+            return this;
+        }
+
+        /**
+         * Start a request with a couple of connections, add more while the throughput grows,
+         * up to maxFileBlockCnt, and use fewer when they do not help or fail,
+         * instead of a fixed nThreadsOfRequest.
+         */
+        public Builder adaptiveConnections(boolean enable) {
+            adaptiveConnections = enable;
+            return this;
+        }
+
+        /**
+         * A block task which finished early takes over the unfinished second half of
+         * the largest remaining block of the same request.
+         */
+        public Builder workStealing(boolean enable) {
+            workStealing = enable;
+            return this;
+        }
+
+        /**
+         * Download blocks of plain http sources on a few event loop threads with non-blocking
+         * sockets instead of holding a thread of the pool per block, https is not affected.
+         * Can not be used with interceptors, {@link #build()} throws if both are set.
+         */
+        public Builder nioEngine(boolean enable) {
+            nioEngine = enable;
+            return this;
+        }
+
+        public Builder nioThreadCount(int cnt) {
+            if (cnt < 1)
+                throw new IllegalArgumentException("Invalid nio thread count: " + cnt);
+            nioThreadCount = cnt;
+            return this;
+        }
+
+        /**
+         * Limit of blocks transferring on the nio engine at the same time, they do not
+         * hold threads of the pool so threadCount does not bound them.
+         */
+        public Builder maxNioTransfers(int cnt) {
+            if (cnt < 1)
+                throw new IllegalArgumentException("Invalid max nio transfers: " + cnt);
+            maxNioTransfers = cnt;
+            return this;
+        }
+
+        /**
+         * Run prepare and block tasks on virtual threads if the jvm supports, the number of
+         * running block tasks is still limited by threadCount, otherwise it is ignored.
+         */
+        public Builder virtualThreads(boolean enable) {
+            virtualThreads = enable;
+            return this;
+        }
+
+        /**
+         * Query file length with a ranged GET from the beginning instead of HEAD, and keep
+         * the response as the stream of the first block, which saves a round trip.
+         */
+        public Builder probeWithRangedGet(boolean enable) {
+            probeWithRangedGet = enable;
+            return this;
+        }
+
+        /**
+         * When a request is almost done and a block is far slower than the finished ones,
+         * fetch the rest of it again from another connection, the first one wins.
+         */
+        public Builder hedging(boolean enable) {
+            hedging = enable;
+            return this;
+        }
+
+        /**
+         * Max block transfers to one host at the same time, the others wait in the queue
+         * of the host, while hosts of equal priority take turns.
+         */
+        public Builder maxConnectionsPerHost(int cnt) {
+            if (cnt < 1)
+                throw new IllegalArgumentException("Invalid max connections per host: " + cnt);
+            maxConnectionsPerHost = cnt;
+            return this;
+        }
+
+        /**
+         * Max idle keep-alive connections kept for a host by {@link ConnectionPool}, it does not
+         * limit the live ones, which maxConnectionsPerHost does. The pool is only used by the
+         * nio engine for plain http, the default HttpURLConnection path and https keep alive
+         * in the pool of the platform, which this does not cover.
+         */
+        public Builder maxIdleConnectionsPerHost(int cnt) {
+            if (cnt < 0)
+                throw new IllegalArgumentException("Invalid max idle connections: " + cnt);
+            maxIdleConnectionsPerHost = cnt;
+            return this;
+        }
+
+        /**
+         * Ms an idle connection of {@link ConnectionPool} is kept.
+         */
+        public Builder keepAliveDuration(long duration) {
+            if (duration < 0)
+                throw new IllegalArgumentException("Invalid keep alive duration: " + duration);
+            keepAliveDuration = duration;
+            return this;
+        }
+
+        /**
+         * @param bytesPerSecond cap of all requests, 0 for unlimited
+         */
+        public Builder maxBytesPerSecond(long bytesPerSecond) {
+            if (bytesPerSecond < 0)
+                throw new IllegalArgumentException("Invalid max bytes per second: " + bytesPerSecond);
+            maxBytesPerSecond = bytesPerSecond;
+            return this;
         }
 
         public Builder enableLogFile(String path) {
@@ -221,6 +568,34 @@ public class AwDownloader {
             return this;
         }
 
+        /**
+         * Export a snapshot of {@link #metrics()} every interval ms, and once more on shutdown.
+         */
+        public Builder metricsExporter(MetricsExporter exporter, long interval) {
+            if (interval <= 0)
+                throw new IllegalArgumentException("Invalid metrics interval: " + interval);
+            metricsExporter = exporter;
+            metricsInterval = interval;
+            return this;
+        }
+
+        /**
+         * Trace the stages of downloads, see {@link Tracer}.
+         */
+        public Builder tracer(Tracer t) {
+            tracer = t;
+            return this;
+        }
+
+        /**
+         * Add an interceptor after those added before, see {@link Interceptor}.
+         * Can not be used with the nio engine, {@link #build()} throws if both are set.
+         */
+        public Builder addInterceptor(@NonNull Interceptor interceptor) {
+            interceptors.add(interceptor);
+            return this;
+        }
+
         public Builder logLevel(int level) {
             logLevel = level;
             return this;
@@ -231,15 +606,59 @@ public class AwDownloader {
     public static final int TIMEOUT_READ = 8_000;
     public static final int MAX_RETRY_TIMES = 2;
     public static final int BUFFER_SIZE = 8192;
+    public static final long MAX_IDLE_BUFFER_BYTES = 4 << 20;
+    public static final int WRITE_BEHIND_QUEUE_SIZE = 64;
+    public static final long GROUP_COMMIT_INTERVAL = 2000; // ms
+    public static final long PROGRESS_INTERVAL = 100; // ms
+    public static final long METRICS_INTERVAL = 10_000; // ms
     public static final int MIN_FILE_BLOCK_SIZE = 16 * 1024 * 1024;
     public static final int MAX_FILE_BLOCK_CNT = 16;
+    public static final int INITIAL_CONNECTIONS = 2;
+    public static final long MAPPED_WINDOW_SIZE = 64 << 20;
+    public static final int MIN_STEAL_BLOCK_SIZE = 1024 * 1024;
+    public static final int HEDGE_PROGRESS_PERCENT = 90;
+    public static final int HEDGE_SLOWDOWN = 4;
+    public static final long MIN_HEDGE_ELAPSED = 1000; // ms
 
     public static final int MAX_THREAD_COUNT = 4;
     public static final int MAX_THREAD_COUNT_PER_REQUEST = 2;
+    public static final int PREPARE_THREAD_COUNT = 2;
+    public static final int PREPARE_LOOKAHEAD = 8;
     public static final int MAX_TASK_COUNT = 10000;
+    public static final int NIO_THREAD_COUNT = 2;
+    public static final int MAX_NIO_TRANSFERS = 256;
+    public static final int MAX_CONNECTIONS_PER_HOST = 6;
+    public static final int MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+    public static final long KEEP_ALIVE_DURATION = 30_000; // ms
 
     public static final int LOG_LEVEL_DEBUG = 1;
     public static final int LOG_LEVEL_INFO = 2;
 
     public static final String TEMP_FILE_EXTENSION = ".tmp";
+
+    public static final int PREALLOCATE_NONE = 0;
+    public static final int PREALLOCATE_SET_LENGTH = 1;
+    public static final int PREALLOCATE_ZERO_FILL = 2;
+    public static final int PREALLOCATE_NATIVE = 3;
+
+    @IntDef({
+            PREALLOCATE_NONE,
+            PREALLOCATE_SET_LENGTH,
+            PREALLOCATE_ZERO_FILL,
+            PREALLOCATE_NATIVE,
+    })
+    public @interface Preallocation {
+    }
+
+    public static final int DURABILITY_NONE = 0;
+    public static final int DURABILITY_PERIODIC = 1;
+    public static final int DURABILITY_GROUP_COMMIT = 2;
+
+    @IntDef({
+            DURABILITY_NONE,
+            DURABILITY_PERIODIC,
+            DURABILITY_GROUP_COMMIT,
+    })
+    public @interface Durability {
+    }
 }
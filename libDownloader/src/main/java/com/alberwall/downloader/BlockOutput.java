@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where a block task writes the bytes of its block, opened by {@link DownloadRequest#openOutput()}.
+ */
+interface BlockOutput extends Closeable {
+    /**
+     * Write all bytes between position and limit of the buffer at the position of the file.
+     */
+    void write(ByteBuffer src, long position) throws IOException;
+
+    /**
+     * Make the written bytes durable.
+     */
+    void sync() throws IOException;
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read buffers of the block tasks, heap or direct, reused across blocks and retries.
+ * Idle buffers are kept in stripes chosen by the thread, so a thread mostly gets back its
+ * own buffer without contention, and nothing is stranded in threads which die.
+ * At most maxIdleBytes of idle buffers are kept, the buffers released beyond that are left
+ * to GC. This does not bound the memory in use, acquire allocates a new buffer whenever
+ * none is idle, the block tasks and the write-behind queue bound the buffers outstanding.
+ */
+public final class BufferPool {
+    private static final int MAX_STRIPES = 16;
+
+    private final int mBufferSize;
+    private final long mMaxIdleBytes;
+    private final Stripe[] mStripes;
+
+    private final AtomicLong mHitCount = new AtomicLong(0);
+    private final AtomicLong mMissCount = new AtomicLong(0);
+    private final AtomicInteger mOutstanding = new AtomicInteger(0);
+    private final AtomicInteger mIdle = new AtomicInteger(0);
+
+    /**
+     * @param bufferSize capacity of each buffer
+     * @param maxIdleBytes 0 for no pooling
+     */
+    public BufferPool(int bufferSize, long maxIdleBytes) {
+        mBufferSize = bufferSize;
+        mMaxIdleBytes = maxIdleBytes;
+
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n < MAX_STRIPES) {
+            n <<= 1;
+        }
+        mStripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return a cleared buffer of getBufferSize(), to be given back by {@link #release(ByteBuffer)},
+     * newly allocated if none is idle.
+     */
+    public ByteBuffer acquire(boolean direct) {
+        mOutstanding.incrementAndGet();
+
+        int home = stripeIndex();
+        for (int i = 0; i < mStripes.length; i++) {
+            ByteBuffer buffer = mStripes[(home + i) & (mStripes.length - 1)].poll(direct);
+            if (null != buffer) {
+                mIdle.decrementAndGet();
+                mHitCount.incrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+        }
+
+        mMissCount.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(mBufferSize) : ByteBuffer.allocate(mBufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (null == buffer) return;
+
+        mOutstanding.decrementAndGet();
+        if (buffer.capacity() != mBufferSize || buffer.isReadOnly()) return;
+        if ((long) mIdle.incrementAndGet() * mBufferSize > mMaxIdleBytes) {
+            mIdle.decrementAndGet();
+            return;
+        }
+
+        mStripes[stripeIndex()].offer(buffer);
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return count of buffers acquired and not released yet.
+     */
+    public int getOutstandingCount() {
+        return mOutstanding.get();
+    }
+
+    public int getIdleCount() {
+        return mIdle.get();
+    }
+
+    private int stripeIndex() {
+        return (int) Thread.currentThread().getId() & (mStripes.length - 1);
+    }
+
+    private static final class Stripe {
+        private final ArrayDeque<ByteBuffer> mHeap = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> mDirect = new ArrayDeque<>();
+
+        synchronized ByteBuffer poll(boolean direct) {
+            // the last one released is the most likely to be in cache.
+            return direct ? mDirect.pollLast() : mHeap.pollLast();
+        }
+
+        synchronized void offer(ByteBuffer buffer) {
+            if (buffer.isDirect()) {
+                mDirect.addLast(buffer);
+            } else {
+                mHeap.addLast(buffer);
+            }
+        }
+    }
+}
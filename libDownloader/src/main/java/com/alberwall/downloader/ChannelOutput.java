@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Positional writes to the file channel shared by the block tasks of a request.
+ */
+class ChannelOutput implements BlockOutput {
+    private final DownloadRequest mReq;
+    private FileChannel mChannel;
+
+    ChannelOutput(DownloadRequest req) throws IOException {
+        mReq = req;
+        mChannel = req.acquireOutput();
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += mChannel.write(src, position);
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        mChannel.force(false);
+    }
+
+    @Override
+    public void close() {
+        if (null == mChannel) return;
+        mChannel = null;
+        mReq.releaseOutput();
+    }
+}
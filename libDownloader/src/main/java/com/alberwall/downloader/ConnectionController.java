@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+/**
+ * Decides how many connections a request should use (AIMD). The throughput of the request
+ * is measured in windows, one more connection is added while it keeps growing, the last one
+ * is given up if it does not help, and the count is halved on errors.
+ */
+final class ConnectionController {
+    private static final long WINDOW = 2000; // ms
+    private static final double MIN_GAIN = 0.1;
+
+    private final int mMax;
+    private volatile int mTarget;
+    private volatile long mWindowStart = 0;
+
+    // guarded by this
+    private long mWindowBytes;
+    private double mLastRate = -1;
+    private boolean mLastIncreased = false;
+    private int mErrors = 0;
+
+    ConnectionController(int initial, int max) {
+        mMax = max;
+        mTarget = Math.max(1, Math.min(initial, max));
+    }
+
+    int getTarget() {
+        return mTarget;
+    }
+
+    synchronized void onError() {
+        mErrors++;
+    }
+
+    /**
+     * @return true if the target changes
+     */
+    boolean onProgress(DownloadRequest req) {
+        long now = System.currentTimeMillis();
+        if (now - mWindowStart < WINDOW) return false;
+        return onProgress(req.getDownloadedBytes(), now);
+    }
+
+    /**
+     * @param downloadedBytes of the request
+     * @param now in ms
+     * @return true if the target changes
+     */
+    boolean onProgress(long downloadedBytes, long now) {
+        synchronized (this) {
+            if (now - mWindowStart < WINDOW) return false;
+            if (0 == mWindowStart) { // first window
+                mWindowStart = now;
+                mWindowBytes = downloadedBytes;
+                return false;
+            }
+
+            double rate = (double) (downloadedBytes - mWindowBytes) / (now - mWindowStart);
+            int old = mTarget;
+            if (mErrors > 0) {
+                mTarget = Math.max(1, old / 2);
+            } else if (mLastRate < 0 || rate > mLastRate * (1 + MIN_GAIN)) {
+                mTarget = Math.min(mMax, old + 1);
+            } else if (mLastIncreased) {
+                mTarget = Math.max(1, old - 1);
+            }
+
+            mLastIncreased = mTarget > old;
+            mLastRate = rate;
+            mErrors = 0;
+            mWindowStart = now;
+            mWindowBytes = downloadedBytes;
+            return mTarget != old;
+        }
+    }
+}
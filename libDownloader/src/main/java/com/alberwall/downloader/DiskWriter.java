@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the buffers read by block tasks to one disk on its own thread, so that a slow
+ * write or sync does not stop the reads. The queue is bounded, a reader waits when the
+ * disk falls behind. The syncs asked for while a batch was queued are done once after it,
+ * as the durability mode says. The writer only counts the written bytes, listeners are
+ * called on the thread of the block task.
+ */
+final class DiskWriter implements Runnable {
+    private static final long KEEP_ALIVE = 30_000; // ms
+
+    private final AwDownloader mDownloader;
+    private final String mName;
+    private final BlockingQueue<Item> mQueue;
+
+    private Thread mThread; // guarded by this
+    private volatile boolean mShutdown = false;
+
+    DiskWriter(AwDownloader downloader, String name, int capacity) {
+        mDownloader = downloader;
+        mName = name;
+        mQueue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return the key of the disk which holds the file, empty if unknown.
+     */
+    static String diskOf(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (null == dir) return "";
+        try {
+            return Files.getFileStore(dir.toPath()).toString();
+        } catch (IOException | RuntimeException | LinkageError e) {
+            return ""; // java.nio.file is not available before Android O.
+        }
+    }
+
+    /**
+     * @param recordProgress whether to save the progress of the block after syncs
+     */
+    Stream open(FileBlockRequest block, BlockOutput output, boolean recordProgress) {
+        return new Stream(block, output, recordProgress);
+    }
+
+    /**
+     * The writer stops after the batch in progress, not interrupted because an interrupt
+     * closes the file channel shared by the other blocks.
+     */
+    void shutdown() {
+        mShutdown = true;
+    }
+
+    @Override
+    public void run() {
+        List<Item> batch = new ArrayList<>();
+        Set<Stream> toSync = new LinkedHashSet<>();
+        Set<Stream> toFlush = new LinkedHashSet<>();
+        List<CountDownLatch> flushed = new ArrayList<>();
+        while (true) {
+            Item first;
+            try {
+                first = mQueue.poll(KEEP_ALIVE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                first = null;
+            }
+            if (null == first) {
+                synchronized (this) {
+                    if (mShutdown) {
+                        mThread = null;
+                        fail(new InterruptedIOException("Disk writer has been shutdown"));
+                        return;
+                    }
+                    if (mQueue.isEmpty()) {
+                        mThread = null;
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            batch.add(first);
+            mQueue.drainTo(batch);
+            for (Item item : batch) {
+                if (null != item.buffer) {
+                    write(item);
+                } else {
+                    toSync.add(item.stream);
+                    if (null != item.flushed) {
+                        toFlush.add(item.stream);
+                        flushed.add(item.flushed);
+                    }
+                }
+            }
+            for (Stream s : toSync) {
+                s.sync(!toFlush.contains(s));
+            }
+            for (CountDownLatch latch : flushed) {
+                latch.countDown();
+            }
+            batch.clear();
+            toSync.clear();
+            toFlush.clear();
+            flushed.clear();
+
+            if (mShutdown) {
+                synchronized (this) {
+                    mThread = null;
+                    fail(new InterruptedIOException("Disk writer has been shutdown"));
+                    return;
+                }
+            }
+        }
+    }
+
+    private void write(Item item) {
+        Stream s = item.stream;
+        try {
+            if (null == s.error) {
+                int len = item.buffer.remaining();
+                s.output.write(item.buffer, item.position);
+                s.block.addWrittenBytes(len);
+            }
+        } catch (IOException e) {
+            s.error = e;
+        } finally {
+            mDownloader.bufferPool().release(item.buffer);
+        }
+    }
+
+    /**
+     * Release what is left in the queue when the writer stops.
+     */
+    private void fail(IOException e) {
+        Item item;
+        while (null != (item = mQueue.poll())) {
+            if (null == item.stream.error) item.stream.error = e;
+            mDownloader.bufferPool().release(item.buffer);
+            if (null != item.flushed) item.flushed.countDown();
+        }
+    }
+
+    private void enqueue(Item item) throws IOException {
+        if (mShutdown) {
+            mDownloader.bufferPool().release(item.buffer);
+            throw new InterruptedIOException("Disk writer has been shutdown");
+        }
+        if (!mQueue.offer(item)) {
+            ensureRunning();
+            try {
+                mQueue.put(item);
+            } catch (InterruptedException e) {
+                mDownloader.bufferPool().release(item.buffer);
+                throw new InterruptedIOException("Interrupted when queue a write of " + item.stream.block);
+            }
+        }
+        // the writer does not stop while the queue is not empty.
+        ensureRunning();
+    }
+
+    /**
+     * Start the writer if it has stopped, or fail what is queued if it has stopped
+     * for shutdown, the item may be queued after the writer drained the queue.
+     */
+    private synchronized void ensureRunning() {
+        if (null != mThread) return;
+        if (mShutdown) {
+            fail(new InterruptedIOException("Disk writer has been shutdown"));
+        } else {
+            mThread = new Thread(this, "aw-writer-" + mName);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Writes of one attempt of a block task, in order.
+     */
+    final class Stream {
+        final FileBlockRequest block;
+        final BlockOutput output;
+        final boolean recordProgress;
+        volatile IOException error;
+
+        Stream(FileBlockRequest block, BlockOutput output, boolean recordProgress) {
+            this.block = block;
+            this.output = output;
+            this.recordProgress = recordProgress;
+        }
+
+        /**
+         * Queue the bytes between position and limit of a buffer of the pool, which belongs
+         * to the writer from now on.
+         */
+        void write(ByteBuffer buffer, long position) throws IOException {
+            block.reportProgress();
+            if (null != error) {
+                mDownloader.bufferPool().release(buffer);
+                throw error;
+            }
+            enqueue(new Item(this, buffer, position, null));
+        }
+
+        void requestSync() throws IOException {
+            block.reportProgress();
+            if (null != error) throw error;
+            enqueue(new Item(this, null, 0, null));
+        }
+
+        /**
+         * Wait until all queued bytes have been written and synced.
+         */
+        void flush() throws IOException {
+            CountDownLatch latch = new CountDownLatch(1);
+            enqueue(new Item(this, null, 0, latch));
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted when flush " + block);
+            } finally {
+                block.reportProgress();
+            }
+            if (null != error) throw error;
+        }
+
+        private void sync(boolean periodic) {
+            if (null != error) return;
+            try {
+                mDownloader.dispatcher().sync(block, output, recordProgress, periodic);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    private static final class Item {
+        final Stream stream;
+        final ByteBuffer buffer; // null for a sync
+        final long position;
+        final CountDownLatch flushed;
+
+        Item(Stream stream, ByteBuffer buffer, long position, CountDownLatch flushed) {
+            this.stream = stream;
+            this.buffer = buffer;
+            this.position = position;
+            this.flushed = flushed;
+        }
+    }
+}
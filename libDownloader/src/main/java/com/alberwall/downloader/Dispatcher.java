@@ -17,13 +17,32 @@
 package com.alberwall.downloader;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.UiThread;
 
+import com.alberwall.downloader.exceptions.RequestException;
+import com.alberwall.downloader.metrics.Counter;
+import com.alberwall.downloader.metrics.Gauge;
+import com.alberwall.downloader.metrics.Histogram;
+import com.alberwall.downloader.metrics.Meter;
+import com.alberwall.downloader.metrics.Metrics;
+import com.alberwall.downloader.trace.Tracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -35,20 +54,102 @@ final class Dispatcher {
     private final ExecutorService mPrepareExecutorService;
     @NonNull
     private final ExecutorService mDownloadExecutorService;
+    @Nullable
+    private final NioEngine mNioEngine;
+    @NonNull
+    private final HostScheduler mPrepareScheduler;
+    @NonNull
+    private final HostScheduler mDownloadScheduler;
+    @Nullable
+    // checks of stragglers and adjustments of connections
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final GroupSyncer mGroupSyncer;
+    private final Meter mBytesMeter;
+    private final Counter mRetries;
+    private final Histogram mFsyncTime;
+    // by disk, guarded by this
+    private final Map<String, DiskWriter> mDiskWriters = new HashMap<>();
 
     Dispatcher(AwDownloader downloader) {
         mDownloader = downloader;
 
-        mPrepareExecutorService = new ThreadPoolExecutor(
-                1,
-                1,
-                0, TimeUnit.SECONDS,
-                new PriorityBlockingQueue<Runnable>());
-        mDownloadExecutorService = new ThreadPoolExecutor(
-                2,
-                downloader.threadCount,
-                10, TimeUnit.SECONDS,
-                new PriorityBlockingQueue<Runnable>());
+        ExecutorService prepareVirtual = null;
+        ExecutorService downloadVirtual = null;
+        if (downloader.virtualThreads) {
+            prepareVirtual = PermitExecutor.newVirtualThreadExecutor();
+            downloadVirtual = PermitExecutor.newVirtualThreadExecutor();
+        }
+
+        if (null != prepareVirtual && null != downloadVirtual) {
+            // semaphores instead of pool sizes, a virtual thread per task.
+            mPrepareExecutorService = new PermitExecutor(prepareVirtual, downloader.prepareThreadCount);
+            mDownloadExecutorService = new PermitExecutor(downloadVirtual, downloader.threadCount);
+        } else {
+            ThreadPoolExecutor prepareExecutor = new ThreadPoolExecutor(
+                    downloader.prepareThreadCount,
+                    downloader.prepareThreadCount,
+                    10, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>());
+            prepareExecutor.allowCoreThreadTimeOut(true);
+            mPrepareExecutorService = prepareExecutor;
+            // The queue is unbounded, so a ThreadPoolExecutor never grows past its core size,
+            // let the core size be threadCount and time out idle core threads instead.
+            ThreadPoolExecutor downloadExecutor = new ThreadPoolExecutor(
+                    downloader.threadCount,
+                    downloader.threadCount,
+                    10, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>());
+            downloadExecutor.allowCoreThreadTimeOut(true);
+            mDownloadExecutorService = downloadExecutor;
+        }
+
+        // a prepared request keeps its slot until it starts downloading.
+        Metrics metrics = downloader.metrics();
+        mPrepareScheduler = new HostScheduler(mPrepareExecutorService,
+                downloader.prepareLookahead, downloader.maxConnectionsPerHost,
+                metrics.histogram(Metrics.PREPARE_QUEUE_WAIT));
+        // nio block tasks only pass through the pool, the engine carries their transfers.
+        mDownloadScheduler = new HostScheduler(mDownloadExecutorService,
+                downloader.threadCount, downloader.maxNioTransfers,
+                downloader.maxConnectionsPerHost,
+                metrics.histogram(Metrics.DOWNLOAD_QUEUE_WAIT));
+        metrics.gauge(Metrics.PREPARE_QUEUE_DEPTH, new Gauge() {
+            @Override
+            public long get() {
+                return mPrepareScheduler.getQueuedCount();
+            }
+        });
+        metrics.gauge(Metrics.DOWNLOAD_QUEUE_DEPTH, new Gauge() {
+            @Override
+            public long get() {
+                return mDownloadScheduler.getQueuedCount();
+            }
+        });
+        mBytesMeter = metrics.meter(Metrics.BYTES);
+        mRetries = metrics.counter(Metrics.RETRIES);
+        mFsyncTime = metrics.histogram(Metrics.FSYNC_TIME);
+
+        NioEngine engine = null;
+        if (downloader.nioEngine) {
+            try {
+                engine = new NioEngine(downloader.nioThreadCount, downloader.connectionPool());
+            } catch (IOException e) {
+                // fall back to blocking block tasks
+                e.printStackTrace();
+            }
+        }
+        mNioEngine = engine;
+
+        if (downloader.hedging || downloader.adaptiveConnections) {
+            mTimer = new ScheduledThreadPoolExecutor(1);
+            mTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+            mTimer.allowCoreThreadTimeOut(true);
+        } else {
+            mTimer = null;
+        }
+
+        mGroupSyncer = downloader.durability == AwDownloader.DURABILITY_GROUP_COMMIT
+                ? new GroupSyncer(downloader, AwDownloader.GROUP_COMMIT_INTERVAL) : null;
     }
 
     @UiThread
@@ -58,7 +159,7 @@ final class Dispatcher {
             TaskRunnable task = new TaskRunnable(new PrepareTask(req, mDownloader));
             req.setRunner(task);
             req.setState(DownloadRequest.STATE_PREPARE_QUEUE);
-            prepareExecutorService().execute(task);
+            mPrepareScheduler.execute(task, hostOf(req.source[0]), req.priority);
         }
     }
 
@@ -83,14 +184,188 @@ final class Dispatcher {
     }
 
     synchronized void shutdown() {
+        mPrepareScheduler.shutdown();
+        mDownloadScheduler.shutdown();
         prepareExecutorService().shutdown();
         downloadExecutorService().shutdown();
+        if (null != mNioEngine) {
+            mNioEngine.shutdown();
+        }
+        if (null != mTimer) {
+            mTimer.shutdownNow();
+        }
+        if (null != mGroupSyncer) {
+            mGroupSyncer.shutdown();
+        }
+        for (DiskWriter writer : mDiskWriters.values()) {
+            writer.shutdown();
+        }
+        mDownloader.connectionPool().evictAll();
     }
 
     void enqueue(FileBlockRequest request) throws RejectedExecutionException, NullPointerException {
-        TaskRunnable task = new TaskRunnable(new FileBlockDownloadTask(request, mDownloader));
+        Task<FileBlockRequest> blockTask;
+        if (null != mNioEngine && NioBlockTask.isSupported(request.fileBlock.getSource())) {
+            blockTask = new NioBlockTask(request, mDownloader, mNioEngine);
+        } else {
+            blockTask = new FileBlockDownloadTask(request, mDownloader);
+        }
+        TaskRunnable task = new TaskRunnable(blockTask);
+        request.setRunner(task);
+        schedule(task, request, blockTask instanceof NioBlockTask);
+    }
+
+    /**
+     * Run the block on a client which has been connected at the current offset of the block,
+     * the length probe of prepare hands its response over to the first block in this way.
+     * The connection is not counted by the limit per host while it waits, so the block
+     * only takes it if it can start at once.
+     * @return false if the block would wait, nothing is enqueued and the client is left to the caller
+     */
+    boolean tryEnqueue(FileBlockRequest request, DownloadClient connected)
+            throws RejectedExecutionException, NullPointerException {
+        TaskRunnable task = new TaskRunnable(new FileBlockDownloadTask(request, mDownloader, connected));
         request.setRunner(task);
-        downloadExecutorService().execute(task);
+        return mDownloadScheduler.tryExecute(task, hostOf(request.fileBlock.getSource()),
+                request.rawRequest.priority);
+    }
+
+    private void schedule(TaskRunnable task, FileBlockRequest request, boolean onLoop) {
+        mDownloadScheduler.execute(task, hostOf(request.fileBlock.getSource()),
+                request.rawRequest.priority, onLoop);
+    }
+
+    /**
+     * Take over the tail of the largest unfinished block when work stealing is enabled,
+     * or hedge a straggler if nothing can be stolen. Must be done before the finished
+     * block reports, otherwise the request may be completed without the stolen range.
+     */
+    void stealTail(FileBlockRequest finished) {
+        DownloadRequest rawReq = finished.rawRequest;
+        if (finished.isHedge() || rawReq.isCancelled()) return;
+
+        if (null != rawReq.controller()) {
+            // keep the number of connections the controller wants.
+            if (adjustConnections(rawReq) == 0) {
+                hedgeStraggler(finished);
+            }
+            return;
+        }
+
+        FileBlockRequest stolen = mDownloader.workStealing
+                ? rawReq.stealBlock(AwDownloader.MIN_STEAL_BLOCK_SIZE) : null;
+        if (null == stolen) {
+            hedgeStraggler(finished);
+            return;
+        }
+
+        mDownloader.database().addOrUpdateDownloadRequest(rawReq);
+        enqueueSplit(stolen);
+    }
+
+    /**
+     * Keep as many blocks running as the connection controller of the request wants:
+     * resume the parked blocks and then split the largest ones, or retire the blocks
+     * with the least bytes left, which park themselves at their next write.
+     * @return count of blocks enqueued
+     */
+    int adjustConnections(DownloadRequest rawReq) {
+        ConnectionController controller = rawReq.controller();
+        if (null == controller || rawReq.isCancelled()) return 0;
+
+        List<FileBlockRequest> resumed = new ArrayList<>();
+        List<FileBlockRequest> added = new ArrayList<>();
+        synchronized (rawReq) {
+            int target = controller.getTarget();
+            int count = rawReq.countRunningBlocks();
+            // the blocks given back are taken again before any new split.
+            while (count < target && rawReq.keepRetiringBlock()) {
+                count++;
+            }
+            FileBlockRequest parked;
+            while (count < target && null != (parked = rawReq.unpark())) {
+                resumed.add(parked);
+                count++;
+            }
+            while (count < target) {
+                FileBlockRequest block = rawReq.stealBlock(AwDownloader.MIN_STEAL_BLOCK_SIZE);
+                if (null == block) break;
+                added.add(block);
+                count++;
+            }
+            while (count > target && rawReq.retireBlock()) {
+                count--;
+            }
+        }
+
+        if (!added.isEmpty()) {
+            mDownloader.database().addOrUpdateDownloadRequest(rawReq);
+        }
+        resumed.addAll(added);
+        for (FileBlockRequest block : resumed) {
+            enqueueSplit(block);
+        }
+        return resumed.size();
+    }
+
+    /**
+     * Adjust the connections of the request on the timer thread, the caller is on the
+     * progress path.
+     */
+    void requestAdjust(final DownloadRequest rawReq) {
+        if (null == mTimer) return;
+        try {
+            mTimer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    adjustConnections(rawReq);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    private void enqueueSplit(FileBlockRequest block) {
+        try {
+            enqueue(block);
+        } catch (Exception e) {
+            block.failed(new RequestException("Error when enqueue " + block, e));
+        }
+    }
+
+    private void hedgeStraggler(final FileBlockRequest finished) {
+        if (null == mTimer || !mDownloader.hedging) return;
+
+        // the rate of finished block is fixed now, a straggler may be too young to judge,
+        // so look again a moment later.
+        final double rate = finished.attemptRate(System.currentTimeMillis(), 0);
+        if (hedgeStraggler(finished, rate)) return;
+        try {
+            mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    hedgeStraggler(finished, rate);
+                }
+            }, AwDownloader.MIN_HEDGE_ELAPSED, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    private boolean hedgeStraggler(FileBlockRequest finished, double rate) {
+        DownloadRequest rawReq = finished.rawRequest;
+        if (rawReq.isCancelled() || rawReq.getState() != DownloadRequest.STATE_DOWNLOADING) return false;
+
+        FileBlockRequest hedge = rawReq.hedgeBlock(finished, rate);
+        if (null == hedge) return false;
+
+        try {
+            enqueue(hedge);
+        } catch (Exception e) {
+            hedge.failed(new RequestException("Error when enqueue hedge " + hedge, e));
+        }
+        return true;
     }
 
     void finished(@NonNull DownloadRequest mReq) {
@@ -108,20 +383,51 @@ final class Dispatcher {
     }
 
     void deliverProgress(DownloadRequest req, long downloadedBytes) {
+        ListenerQueue q = req.listenerQueue();
+        if (null != q) {
+            q.progress(downloadedBytes);
+            return;
+        }
+        notifyProgress(req, downloadedBytes);
+    }
+
+    void deliverProgress(DownloadRequest req, FileBlockRequest blockReq, long downloadedBytes) {
+        ListenerQueue q = req.listenerQueue();
+        if (null != q) {
+            q.progress(blockReq, downloadedBytes);
+            return;
+        }
+        notifyProgress(req, blockReq, downloadedBytes);
+    }
+
+    /**
+     * Call the progress listener of req with the speed if it wants.
+     */
+    static void notifyProgress(DownloadRequest req, long downloadedBytes) {
         OnDownloadListener l = req.downloadListener;
-        if (null != l) {
+        if (l instanceof OnDownloadSpeedListener) {
+            ((OnDownloadSpeedListener) l).onProgress(downloadedBytes, req.totalLength, req.getSpeed(), req.getEta());
+        } else if (null != l) {
             l.onProgress(downloadedBytes, req.totalLength);
         }
     }
 
-    void deliverProgress(DownloadRequest req, FileBlock block, long downloadedBytes) {
+    static void notifyProgress(DownloadRequest req, FileBlockRequest blockReq, long downloadedBytes) {
         OnDownloadBlockListener l = req.blockDownloadListener;
-        if (null != l) {
-            l.onProgress(block, downloadedBytes, req.totalLength);
+        if (l instanceof OnDownloadBlockSpeedListener) {
+            ((OnDownloadBlockSpeedListener) l).onProgress(blockReq.fileBlock, downloadedBytes, req.totalLength,
+                    blockReq.getSpeed(), blockReq.getEta());
+        } else if (null != l) {
+            l.onProgress(blockReq.fileBlock, downloadedBytes, req.totalLength);
         }
     }
 
     void deliverCompleted(DownloadRequest req) {
+        ListenerQueue q = req.listenerQueue();
+        if (null != q) {
+            q.completed();
+            return;
+        }
         OnDownloadListener l = req.downloadListener;
         if (null != l) {
             l.onCompleted();
@@ -129,6 +435,11 @@ final class Dispatcher {
     }
 
     void deliverCompleted(DownloadRequest req, FileBlock block) {
+        ListenerQueue q = req.listenerQueue();
+        if (null != q) {
+            q.completed(block);
+            return;
+        }
         OnDownloadBlockListener l = req.blockDownloadListener;
         if (null != l) {
             l.onCompleted(block);
@@ -136,6 +447,11 @@ final class Dispatcher {
     }
 
     void deliverFailed(DownloadRequest req, Exception error) {
+        ListenerQueue q = req.listenerQueue();
+        if (null != q) {
+            q.failed(error);
+            return;
+        }
         OnDownloadListener l = req.downloadListener;
         if (null != l) {
             l.onFailed(error);
@@ -143,12 +459,80 @@ final class Dispatcher {
     }
 
     void deliverFailed(DownloadRequest req, FileBlock fileBlock, Exception error) {
+        ListenerQueue q = req.listenerQueue();
+        if (null != q) {
+            q.failed(fileBlock, error);
+            return;
+        }
         OnDownloadBlockListener l = req.blockDownloadListener;
         if (null != l) {
             l.onFailed(fileBlock, error);
         }
     }
 
+    /**
+     * Make the bytes written to the output durable as the durability mode says,
+     * and save the progress of the block.
+     * @param recordProgress false if the progress is not saved, e.g. a hedge or no resume
+     * @param periodic false for the last sync of an attempt, which is never delayed
+     */
+    void sync(FileBlockRequest req, BlockOutput output, boolean recordProgress, boolean periodic)
+            throws IOException {
+        int durability = mDownloader.durability;
+        if (durability == AwDownloader.DURABILITY_GROUP_COMMIT && periodic) {
+            if (recordProgress) {
+                mGroupSyncer.markDirty(req, output);
+            }
+            return;
+        }
+
+        // counted before the sync, the bytes are written before they are counted.
+        long bytes = req.getDownloadedBytes();
+        if (durability != AwDownloader.DURABILITY_NONE) {
+            Tracer.Span span = Traces.begin(req, Tracer.STAGE_FSYNC);
+            boolean ok = false;
+            try {
+                long start = System.nanoTime();
+                output.sync();
+                mFsyncTime.recordNanos(System.nanoTime() - start);
+                ok = true;
+            } finally {
+                span.end(req.getDownloadedBytes(), !ok);
+            }
+        }
+        if (recordProgress) {
+            Tracer.Span span = Traces.begin(req, Tracer.STAGE_DB_PROGRESS);
+            mDownloader.database().updateFileBlockProgress(req, bytes, System.currentTimeMillis());
+            span.end(bytes, false);
+        }
+    }
+
+    Meter bytesMeter() {
+        return mBytesMeter;
+    }
+
+    Counter retries() {
+        return mRetries;
+    }
+
+    Histogram fsyncTime() {
+        return mFsyncTime;
+    }
+
+    /**
+     * @return the writer of the disk which holds the file.
+     */
+    synchronized DiskWriter diskWriter(File file) {
+        String disk = DiskWriter.diskOf(file);
+        DiskWriter writer = mDiskWriters.get(disk);
+        if (null == writer) {
+            writer = new DiskWriter(mDownloader, String.valueOf(mDiskWriters.size()),
+                    mDownloader.writeBehindQueueSize);
+            mDiskWriters.put(disk, writer);
+        }
+        return writer;
+    }
+
     private ExecutorService prepareExecutorService() {
         return mPrepareExecutorService;
     }
@@ -166,4 +550,12 @@ final class Dispatcher {
         }
         return null;
     }
+
+    static String hostOf(Source source) {
+        try {
+            return new URL(source.url).getHost().toLowerCase(Locale.US);
+        } catch (MalformedURLException e) {
+            return source.url;
+        }
+    }
 }
@@ -17,20 +17,67 @@
 package com.alberwall.downloader;
 
 import com.alberwall.downloader.http.HttpRealClient;
+import com.alberwall.downloader.http.NioHttpClient;
+import com.alberwall.downloader.metrics.Metrics;
+import com.alberwall.downloader.trace.Tracer;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 
 public class DownloadClientFactory {
 
+    /**
+     * Create a client which follows the settings of downloader, a plain http source uses
+     * {@link NioHttpClient} on the shared connection pool if the nio engine is enabled.
+     * The client is wrapped by the interceptors of downloader if any.
+     */
+    public static DownloadClient createClient(AwDownloader downloader, Source source) throws MalformedURLException {
+        return createClient(downloader, source, -1, -1);
+    }
+
+    /**
+     * @param requestId id of the request the client works for, in the traces of the client
+     * @param blockIndex index of the block the client works for, -1 if none
+     */
+    public static DownloadClient createClient(AwDownloader downloader, Source source, long requestId, int blockIndex)
+            throws MalformedURLException {
+        DownloadClient client = createRealClient(downloader, source, requestId, blockIndex);
+
+        List<Interceptor> interceptors = downloader.interceptors;
+        for (int i = interceptors.size() - 1; i >= 0; i--) {
+            client = interceptors.get(i).intercept(client, source);
+        }
+        return client;
+    }
+
+    private static DownloadClient createRealClient(AwDownloader downloader, Source source, long requestId,
+                                                   int blockIndex) throws MalformedURLException {
+        Tracer tracer = downloader.tracer;
+        if (downloader.nioEngine && NioHttpClient.isSupported(source)) {
+            NioHttpClient client = new NioHttpClient(source, downloader.connectionPool(), downloader.metrics());
+            if (null != tracer) client.setTracer(tracer, requestId, blockIndex);
+            return client;
+        }
+        DownloadClient client = createClient(source, downloader.metrics());
+        if (null != tracer && client instanceof HttpRealClient) {
+            ((HttpRealClient) client).setTracer(tracer, requestId, blockIndex);
+        }
+        return client;
+    }
+
     public static DownloadClient createClient(Source source) throws MalformedURLException {
+        return createClient(source, null);
+    }
+
+    private static DownloadClient createClient(Source source, Metrics metrics) throws MalformedURLException {
         URL url = new URL(source.url);
         switch (url.getProtocol()) {
             case "https":
             case "HTTPS":
             case "http":
             case "HTTP":
-                return new HttpRealClient(source);
+                return new HttpRealClient(source, metrics);
             default:
                 throw new MalformedURLException("Unsupported protocol(" + url.getProtocol() + ") NOW");
         }
@@ -24,12 +24,23 @@ import com.alberwall.downloader.ftp.FtpParameters;
 import com.alberwall.downloader.ftp.FtpSource;
 import com.alberwall.downloader.http.HttpParameters;
 import com.alberwall.downloader.http.HttpSource;
+import com.alberwall.downloader.metrics.Counter;
+import com.alberwall.downloader.metrics.Meter;
+import com.alberwall.downloader.metrics.Metrics;
+import com.alberwall.downloader.trace.Tracer;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SuppressWarnings("WeakerAccess")
 public class DownloadRequest implements Comparable<DownloadRequest> {
@@ -70,7 +81,7 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 
     public long id;
 
-    //TODO:support multiple urls, and source include different Protocol(ftp and http, and so on)
+    //TODO:source include different Protocol(ftp and http, and so on)
     public final Source[] source;
     public final File downloadFile;
     @Priority
@@ -88,14 +99,37 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 
     public volatile long blockSize;
     public volatile long totalLength;
+    // results of prepare, the resolved url is kept in the parameters of source.
+    public volatile boolean resumeSupported;
+    public volatile long preparedTime;
 
     private volatile transient Integer cachedHash;
 
     private transient FileBlockRequest.InternalListener innerListener;
+    private transient FileBlockRequest.InternalListener hedgeListener;
+    private final transient MirrorSelector mirrors;
+    private final transient RateLimiter rateLimiter;
+    private transient volatile ConnectionController controller;
+    // blocks given back by their tasks when connections are retired, guarded by this.
+    private final transient List<FileBlockRequest> parkedBlocks = new ArrayList<>();
+    private transient volatile ListenerQueue listenerQueue;
+    // downloaded bytes of all blocks, kept as they progress.
+    private final transient Counter downloadedBytes = new Counter();
+    private final transient SpeedEstimator speed = new SpeedEstimator();
+    // bytes received for this request, hedges included, created on the first bytes
+    // and dropped when the request is over.
+    private transient volatile Meter bytesMeter;
+    // time in ms the progress was last delivered
+    private final transient AtomicLong deliveredTime = new AtomicLong(0);
+    private transient volatile long deliveredBytes = -1;
+    // the temp file shared by block tasks, guarded by this
+    private transient FileChannel outputChannel;
+    private transient int outputUsers = 0;
     private transient TaskRunnable runner;
 
     @DownloadState
     private volatile int state;
+    private transient Runnable leaveQueueHook; // guarded by this
     private volatile boolean userCanceled = false;
     private volatile boolean markDelivered = false;
     private volatile boolean cleanIfCancelled = false;
@@ -107,12 +141,14 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 
         source = new Source[builder.source.size()];
         builder.source.toArray(source);
+        mirrors = new MirrorSelector(source);
+        rateLimiter = new RateLimiter(builder.maxBytesPerSecond);
         downloadFile = new File(builder.dirPath, builder.fileName);
         priority = builder.priority;
         tag = builder.tag;
 
         maxRetryTimes = builder.maxRetryTimes;
-        blockRequests = new ArrayList<>();
+        blockRequests = new CopyOnWriteArrayList<>();
 
         downloadListener = builder.downloadListener;
         blockDownloadListener = builder.blockDownloadListener;
@@ -122,27 +158,61 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
         innerListener = new FileBlockRequest.InternalListener() {
 
             @Override
-            public void onProgress(FileBlockRequest req, long downloadedBytes, long totalBytes) {
+            public void onProgress(FileBlockRequest req, long deltaBytes) {
                 if (null == downloader) return;
-                long totalDownloaded = computeTotalDownloadedBytes();
-                downloader.dispatcher().deliverProgress(DownloadRequest.this, totalDownloaded);
-                downloader.dispatcher().deliverProgress(DownloadRequest.this, req.fileBlock, downloadedBytes);
+                downloadedBytes.add(deltaBytes);
+                req.addUnmeteredBytes(deltaBytes);
+
+                long now = System.currentTimeMillis();
+                // meter, sample and check the controller once per sample of the block, not per read.
+                if (req.sampleSpeed(now)) {
+                    meterBytes(req, req.takeUnmeteredBytes());
+                    ConnectionController c = controller;
+                    if (null != c && c.onProgress(DownloadRequest.this)) {
+                        downloader.dispatcher().requestAdjust(DownloadRequest.this);
+                    }
+                    if (speed.isDue(now)) {
+                        speed.sample(now, downloadedBytes.sum());
+                    }
+                }
+                deliverProgress(now, false);
+                if (null != blockDownloadListener && req.isProgressDue(
+                        now, downloader.progressInterval, downloader.progressStep)) {
+                    downloader.dispatcher().deliverProgress(
+                            DownloadRequest.this, req, req.getDownloadedBytes());
+                }
             }
 
             @Override
             public void onCompleted(FileBlockRequest req) {
                 if (null == downloader) return;
+                meterBytes(req, req.takeUnmeteredBytes());
+                cancelHedge(req);
                 downloader.dispatcher().deliverCompleted(DownloadRequest.this, req.fileBlock);
 
                 if (isAllBlockCompleted()) {
+                    // the other blocks may be written before their tasks report them.
+                    for (FileBlockRequest block : blockRequests) {
+                        block.reportProgress();
+                    }
                     downloader.dispatcher().finished(DownloadRequest.this);
                 }
             }
 
             @Override
             public void onFailed(FileBlockRequest req, Exception error) {
+                meterBytes(req, req.takeUnmeteredBytes());
+                if (error instanceof IOException) {
+                    mirrors.fail(req.fileBlock.getSource());
+                    ConnectionController c = controller;
+                    if (null != c) {
+                        c.onError();
+                    }
+                }
                 if (req.canRetry(error)) {
                     req.incrementRetry();
+                    // move to another mirror if any
+                    req.fileBlock.setSource(mirrors.nextExcept(req.fileBlock.getSource()));
 
                     try {
                         downloader.dispatcher().enqueue(req);
@@ -157,6 +227,7 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
                 }
 
                 for (FileBlockRequest blockReq : blockRequests) {
+                    cancelHedge(blockReq);
                     if (!blockReq.equals(req)) {
                         blockReq.cancel(false);
                     }
@@ -167,6 +238,34 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
 
             }
         };
+        hedgeListener = new FileBlockRequest.InternalListener() {
+
+            @Override
+            public void onProgress(FileBlockRequest hedge, long deltaBytes) {
+                // the bytes are counted when the hedge wins.
+                hedge.addUnmeteredBytes(deltaBytes);
+                if (hedge.sampleSpeed(System.currentTimeMillis())) {
+                    meterBytes(hedge, hedge.takeUnmeteredBytes());
+                }
+            }
+
+            @Override
+            public void onCompleted(FileBlockRequest hedge) {
+                meterBytes(hedge, hedge.takeUnmeteredBytes());
+                hedgeCompleted(hedge);
+            }
+
+            @Override
+            public void onFailed(FileBlockRequest hedge, Exception error) {
+                meterBytes(hedge, hedge.takeUnmeteredBytes());
+                // never retry a hedge, the straggler is still running.
+                synchronized (DownloadRequest.this) {
+                    if (hedge.hedgeOf.hedge == hedge) {
+                        hedge.hedgeOf.hedge = null;
+                    }
+                }
+            }
+        };
     }
 
     public DownloadRequest(AwDownloader d,
@@ -180,8 +279,10 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
         downloader = d;
         id = reqId;
         priority = pri;
-        blockRequests = new ArrayList<>();
+        blockRequests = new CopyOnWriteArrayList<>();
         source = theSource;
+        mirrors = new MirrorSelector(source);
+        rateLimiter = new RateLimiter(0);
         downloadFile = new File(downloadPath, downloadFileName);
         tmpFile = new File(downloadPath, downloadFileName + AwDownloader.TEMP_FILE_EXTENSION);
 
@@ -210,11 +311,15 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
         cleanIfCancelled = cleanTmpFile;
         setState(STATE_INTERRUPTED);
         userCanceled = true;
+        if (null != downloader) {
+            Traces.begin(downloader, Tracer.STAGE_CANCEL, id, -1, null).end(getDownloadedBytes(), false);
+        }
         if (null != runner) {
             runner.cancel();
         }
 
         for (FileBlockRequest req : blockRequests) {
+            cancelHedge(req);
             req.cancel(true);
         }
     }
@@ -226,6 +331,411 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
     public synchronized void setFileBlockRequests(List<FileBlockRequest> fileBlockRequests) {
         blockRequests.clear();
         blockRequests.addAll(fileBlockRequests);
+
+        // no block is running yet.
+        downloadedBytes.reset();
+        for (FileBlockRequest req : fileBlockRequests) {
+            downloadedBytes.add(req.getDownloadedBytes());
+        }
+    }
+
+    /**
+     * @return bytes downloaded of all blocks
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes.sum();
+    }
+
+    /**
+     * @return smoothed speed in bytes per second, 0 until it is known
+     */
+    public long getSpeed() {
+        double rate = sampleSpeed();
+        return rate < 0 ? 0 : (long) rate;
+    }
+
+    /**
+     * @return estimated ms until the download completes, -1 until it is known
+     */
+    public long getEta() {
+        sampleSpeed();
+        if (totalLength <= 0) return -1;
+        return speed.eta(totalLength - getDownloadedBytes());
+    }
+
+    /**
+     * Sample while downloading, so that the speed falls when the progress stalls.
+     * @return bytes per second, -1 if unknown
+     */
+    private double sampleSpeed() {
+        if (state == STATE_DOWNLOADING) {
+            long now = System.currentTimeMillis();
+            if (speed.isDue(now)) {
+                speed.sample(now, getDownloadedBytes());
+            }
+        }
+        return speed.getRate();
+    }
+
+    /**
+     * Deliver the progress to the listener if it is due, only one thread does.
+     * @param force deliver unless nothing changed, e.g. when completed
+     */
+    private void deliverProgress(long now, boolean force) {
+        if (null == downloadListener) return;
+
+        long last = deliveredTime.get();
+        if (force) {
+            deliveredTime.set(now);
+        } else {
+            long step = downloader.progressStep;
+            long delta = step > 0 ? downloadedBytes.sum() - deliveredBytes : 0;
+            if (!isProgressDue(now - last, delta, downloader.progressInterval, step)
+                    || !deliveredTime.compareAndSet(last, now)) {
+                return;
+            }
+        }
+
+        long bytes = downloadedBytes.sum();
+        if (bytes == deliveredBytes) return;
+        deliveredBytes = bytes;
+        downloader.dispatcher().deliverProgress(this, bytes);
+    }
+
+    /**
+     * Progress is delivered every interval ms or every step bytes, a threshold of 0 is not used,
+     * if both are 0 then each change is delivered.
+     */
+    static boolean isProgressDue(long elapsed, long bytes, long interval, long step) {
+        if (interval <= 0 && step <= 0) return true;
+        return (interval > 0 && elapsed >= interval) || (step > 0 && bytes >= step);
+    }
+
+    /**
+     * Split the unfinished second half of the block which would finish last into a new block,
+     * by the speeds of the blocks if known, otherwise the largest remaining one.
+     * @param minBlockSize min size of both halves
+     * @return the request of the new block, or null if no block is large enough.
+     */
+    synchronized FileBlockRequest stealBlock(long minBlockSize) {
+        // a block which has not been sampled yet is taken as fast as the average one.
+        double requestRate = sampleSpeed();
+        double averageRate = requestRate > 0 ? requestRate / Math.max(1, countIncompleteBlocks()) : -1;
+
+        FileBlockRequest donor = null;
+        double maxTimeLeft = 0;
+        for (FileBlockRequest req : blockRequests) {
+            if (null != req.hedge) continue; // the hedge fetches the whole rest
+            long remaining = req.remainingBytes();
+            if (remaining < 2 * minBlockSize) continue;
+
+            double timeLeft = remaining;
+            if (averageRate > 0) {
+                double rate = req.getSpeedRate();
+                timeLeft = remaining / (rate > 0 ? rate : averageRate);
+            }
+            if (timeLeft > maxTimeLeft) {
+                maxTimeLeft = timeLeft;
+                donor = req;
+            }
+        }
+        if (null == donor) return null;
+
+        FileBlock block = donor.splitTail(blockRequests.size(), minBlockSize);
+        if (null == block) return null;
+
+        block.setSource(mirrors.next());
+        FileBlockRequest stolen = new FileBlockRequest(this, block);
+        blockRequests.add(stolen);
+        return stolen;
+    }
+
+    /**
+     * Start a duplicate fetch of the rest of the slowest block, if most of this request
+     * has been downloaded and the block is much slower than the finished one.
+     * @param finished the block which has finished
+     * @param rate bytes per ms of the finished block
+     * @return the hedge request, or null if no block is slow enough.
+     */
+    synchronized FileBlockRequest hedgeBlock(FileBlockRequest finished, double rate) {
+        if (rate <= 0) return null;
+        if (downloadedBytes.sum() * 100 < totalLength * AwDownloader.HEDGE_PROGRESS_PERCENT) return null;
+
+        long now = System.currentTimeMillis();
+
+        FileBlockRequest straggler = null;
+        double maxTimeLeft = 0;
+        for (FileBlockRequest req : blockRequests) {
+            if (req == finished || null != req.hedge || req.isFileBlockCompleted()
+                    || req.retiring || parkedBlocks.contains(req)) continue;
+
+            double r = req.attemptRate(now, AwDownloader.MIN_HEDGE_ELAPSED);
+            if (r < 0 || r * AwDownloader.HEDGE_SLOWDOWN > rate) continue;
+
+            double timeLeft = req.remainingBytes() / Math.max(r, 0.001);
+            if (timeLeft > AwDownloader.MIN_HEDGE_ELAPSED && timeLeft > maxTimeLeft) {
+                maxTimeLeft = timeLeft;
+                straggler = req;
+            }
+        }
+        if (null == straggler) return null;
+
+        FileBlock block = new FileBlock(mirrors.nextExcept(straggler.fileBlock.getSource()),
+                straggler.fileBlock.blockIndex, straggler.reservedPosition(), straggler.fileBlock.getEnd());
+        FileBlockRequest hedge = new FileBlockRequest(this, block);
+        hedge.hedgeOf = straggler;
+        hedge.setListener(hedgeListener);
+        straggler.hedge = hedge;
+        return hedge;
+    }
+
+    private void meterBytes(FileBlockRequest req, long deltaBytes) {
+        if (0 == deltaBytes || null == downloader) return;
+        Metrics metrics = downloader.metrics();
+        Meter meter = requestMeter();
+        if (null != meter) {
+            meter.mark(deltaBytes);
+        }
+        req.hostMeter(metrics).mark(deltaBytes);
+        downloader.dispatcher().bytesMeter().mark(deltaBytes);
+    }
+
+    /**
+     * Created under the lock which the state is set under, so that it is never created again
+     * once the request is over and its meter has been removed.
+     * @return the meter of this request, null if it is over
+     */
+    private Meter requestMeter() {
+        Meter meter = bytesMeter;
+        if (null != meter) return meter;
+        synchronized (this) {
+            if (state == STATE_COMPLETED || state == STATE_FAILED) return null;
+            if (null == bytesMeter) {
+                bytesMeter = downloader.metrics().meter(Metrics.BYTES_REQUEST + downloadFile.getPath());
+            }
+            return bytesMeter;
+        }
+    }
+
+    /**
+     * The hedge wins, cut its range off the straggler and record it as a completed block.
+     */
+    private void hedgeCompleted(FileBlockRequest hedge) {
+        FileBlockRequest straggler = hedge.hedgeOf;
+        FileBlockRequest won = null;
+        synchronized (this) {
+            if (straggler.hedge != hedge) return; // the straggler has won.
+            straggler.hedge = null;
+
+            long end = straggler.fileBlock.getEnd();
+            long newEnd = straggler.truncate(hedge.fileBlock.start - 1);
+            if (newEnd < end) {
+                FileBlock block = new FileBlock(hedge.fileBlock.getSource(), blockRequests.size(), newEnd + 1, end);
+                won = new FileBlockRequest(this, block, block.blockSize());
+                blockRequests.add(won);
+                downloadedBytes.add(won.getDownloadedBytes());
+            }
+        }
+        if (null == won) return;
+
+        downloader.database().addOrUpdateDownloadRequest(this);
+        won.finished();
+        if (straggler.isFileBlockCompleted()) {
+            // otherwise it is writing the last claimed bytes and will finish by itself.
+            straggler.finished();
+            straggler.cancel(false);
+        }
+    }
+
+    private void cancelHedge(FileBlockRequest req) {
+        FileBlockRequest hedge;
+        synchronized (this) {
+            hedge = req.hedge;
+            req.hedge = null;
+        }
+        if (null != hedge) {
+            hedge.cancel(false);
+        }
+    }
+
+    /**
+     * Cap of this request, which can be changed at any time, 0 for unlimited.
+     */
+    public RateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Charge the bytes read for this request on both its own and the global limiter.
+     * @return nanoseconds to wait before reading more
+     */
+    long throttle(int bytes) {
+        return Math.max(downloader.rateLimiter().acquire(bytes), rateLimiter.acquire(bytes));
+    }
+
+    /**
+     * Reads are charged one by one, so the smaller reads of a lower priority request
+     * get a smaller share of a limited bandwidth.
+     * @return max bytes of next read
+     */
+    int readLimit(int bufferSize) {
+        if (!rateLimiter.isLimited() && !downloader.rateLimiter().isLimited()) return bufferSize;
+        return Math.max(1, bufferSize * priority / PRIORITY_HIGH);
+    }
+
+    /**
+     * @return null if the listeners are called on the download threads
+     */
+    ListenerQueue listenerQueue() {
+        Executor executor = downloader.deliveryExecutor;
+        if (null == executor) return null;
+
+        ListenerQueue q = listenerQueue;
+        if (null == q) {
+            synchronized (this) {
+                q = listenerQueue;
+                if (null == q) {
+                    q = new ListenerQueue(this, executor);
+                    listenerQueue = q;
+                }
+            }
+        }
+        return q;
+    }
+
+    /**
+     * @return null if the number of connections is fixed
+     */
+    ConnectionController controller() {
+        return controller;
+    }
+
+    void setController(ConnectionController c) {
+        controller = c;
+    }
+
+    /**
+     * Open the output of a block task, memory-mapped if enabled and the length is known.
+     */
+    BlockOutput openOutput() throws IOException {
+        if (!downloader.memoryMappedOutput || totalLength <= 0) {
+            return new ChannelOutput(this);
+        }
+
+        MappedOutput output = new MappedOutput(this, AwDownloader.MAPPED_WINDOW_SIZE);
+        synchronized (this) {
+            // a mapping must not reach beyond the end of file, so size it at once.
+            if (outputChannel.size() < totalLength) {
+                outputChannel.write(ByteBuffer.allocate(1), totalLength - 1);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Open the temp file once for all the block tasks, which write at their own positions.
+     * Each call must be paired with {@link #releaseOutput()}.
+     */
+    synchronized FileChannel acquireOutput() throws IOException {
+        if (null == outputChannel || !outputChannel.isOpen()) {
+            outputChannel = new RandomAccessFile(tmpFile, "rw").getChannel();
+        }
+        outputUsers++;
+        return outputChannel;
+    }
+
+    /**
+     * Like {@link #acquireOutput()}, but only if a block task has the file open.
+     * @return null if the file is not open
+     */
+    synchronized FileChannel acquireOpenedOutput() {
+        if (outputUsers <= 0 || null == outputChannel || !outputChannel.isOpen()) return null;
+        outputUsers++;
+        return outputChannel;
+    }
+
+    synchronized void releaseOutput() {
+        if (--outputUsers > 0) return;
+        Utils.closeSafely(outputChannel);
+        outputChannel = null;
+        outputUsers = 0;
+    }
+
+    synchronized int countIncompleteBlocks() {
+        int count = 0;
+        for (FileBlockRequest req : blockRequests) {
+            if (!req.isFileBlockCompleted()) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return count of incomplete blocks which are neither retiring nor parked
+     */
+    synchronized int countRunningBlocks() {
+        int count = 0;
+        for (FileBlockRequest req : blockRequests) {
+            if (!req.isFileBlockCompleted() && !req.retiring && !parkedBlocks.contains(req)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Ask the running block with the least bytes left to stop at its next write.
+     * @return false if no block can be retired
+     */
+    synchronized boolean retireBlock() {
+        FileBlockRequest candidate = null;
+        for (FileBlockRequest req : blockRequests) {
+            if (req.isFileBlockCompleted() || req.retiring || null != req.hedge
+                    || parkedBlocks.contains(req)) continue;
+            if (null == candidate || req.remainingBytes() < candidate.remainingBytes()) {
+                candidate = req;
+            }
+        }
+        if (null == candidate) return false;
+        candidate.retiring = true;
+        return true;
+    }
+
+    /**
+     * Let a retiring block go on, it has not been parked yet.
+     * @return false if no block is retiring
+     */
+    synchronized boolean keepRetiringBlock() {
+        for (FileBlockRequest req : blockRequests) {
+            if (req.retiring) {
+                req.retiring = false;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called by the task of a retiring block once its bytes have been synced.
+     * @return false if the block is not retiring any more and the task should go on
+     */
+    synchronized boolean park(FileBlockRequest block) {
+        if (!block.retiring) return false;
+        block.retiring = false;
+        parkedBlocks.add(block);
+        return true;
+    }
+
+    /**
+     * @return a parked block to be enqueued again, or null if none
+     */
+    synchronized FileBlockRequest unpark() {
+        return parkedBlocks.isEmpty() ? null : parkedBlocks.remove(parkedBlocks.size() - 1);
+    }
+
+    MirrorSelector mirrors() {
+        return mirrors;
+    }
+
+    AwDownloader downloader() {
+        return downloader;
     }
 
     public TaskRunnable getRunner() {
@@ -244,10 +754,30 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
         tag = t;
     }
 
-    synchronized void setState(@DownloadState int s) {
-        if (state != s) {
+    void setState(@DownloadState int s) {
+        Runnable hook = null;
+        synchronized (this) {
+            if (state == s) return;
+            if (state == STATE_DOWNLOAD_QUEUE) {
+                hook = leaveQueueHook;
+                leaveQueueHook = null;
+            }
             state = s;
         }
+        if (null != hook) {
+            hook.run();
+        }
+    }
+
+    /**
+     * Set state to {@link #STATE_DOWNLOAD_QUEUE}.
+     * @param leaveHook run once when this request goes on to another state
+     */
+    void enterDownloadQueue(Runnable leaveHook) {
+        synchronized (this) {
+            leaveQueueHook = leaveHook;
+        }
+        setState(STATE_DOWNLOAD_QUEUE);
     }
 
     void setCompleted() {
@@ -259,9 +789,12 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
         downloader.database().removeDownloadRequest(id);
         downloader.database().removeBlockInfo(id);
         Utils.renameFile(tmpFile, downloadFile);
+        downloader.metrics().remove(Metrics.BYTES_REQUEST + downloadFile.getPath());
+        bytesMeter = null;
 
         if (markDelivered) return;
         markDelivered = true;
+        deliverProgress(System.currentTimeMillis(), true);
         downloader.dispatcher().deliverCompleted(this);
     }
 
@@ -276,6 +809,8 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
             downloader.database().removeBlockInfo(id);
             Utils.deleteFile(tmpFile);
         }
+        downloader.metrics().remove(Metrics.BYTES_REQUEST + downloadFile.getPath());
+        bytesMeter = null;
 
         if (markDelivered) return;
         markDelivered = true;
@@ -312,10 +847,11 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
     @Override
     public int compareTo(@NonNull DownloadRequest o) {
         if (priority != o.priority) {
-            return priority - o.priority;
+            return o.priority - priority; // higher priority goes first
         }
 
-        return id - o.id > 0 ? 1 : -1;
+        if (id == o.id) return 0;
+        return id > o.id ? 1 : -1;
     }
 
     @Override
@@ -351,15 +887,7 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
         return urls.toString().hashCode();
     }
 
-    private long computeTotalDownloadedBytes() {
-        long downloadedBytes = 0;
-        for (FileBlockRequest req : blockRequests) {
-            downloadedBytes += req.getDownloadedBytes();
-        }
-        return downloadedBytes;
-    }
-
-    private boolean isAllBlockCompleted() {
+    synchronized boolean isAllBlockCompleted() {
         for (FileBlockRequest req : blockRequests) {
             if (!req.isFileBlockCompleted()) {
                 return false;
@@ -379,6 +907,7 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
         private int priority = PRIORITY_MEDIUM;
 
         private int maxRetryTimes = -1;
+        private long maxBytesPerSecond = 0;
 
         private OnDownloadListener downloadListener;
         private OnDownloadBlockListener blockDownloadListener;
@@ -482,6 +1011,16 @@ public class DownloadRequest implements Comparable<DownloadRequest> {
             return this;
         }
 
+        /**
+         * @param bytesPerSecond cap of this request, 0 for unlimited
+         */
+        public Builder maxBytesPerSecond(long bytesPerSecond) {
+            if (bytesPerSecond < 0)
+                throw new IllegalArgumentException("Invalid max bytes per second: " + bytesPerSecond);
+            maxBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
         public Builder setPriority(@Priority int pri) {
             priority = pri;
             return this;
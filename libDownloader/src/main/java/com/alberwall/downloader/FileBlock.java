@@ -17,11 +17,11 @@
 package com.alberwall.downloader;
 
 public class FileBlock {
-    public final Source source;
+    private volatile Source source; // may move to another mirror of the request.
 
     public final int blockIndex;
     public final long start; // start pos is inclusive.
-    public final long end; // end pos is inclusive.
+    private volatile long end; // end pos is inclusive, may shrink when the tail is stolen.
 
     public FileBlock(Source source, int blockIndex, long start, long end) {
         this.source = source;
@@ -30,6 +30,22 @@ public class FileBlock {
         this.blockIndex = blockIndex;
     }
 
+    public Source getSource() {
+        return source;
+    }
+
+    void setSource(Source source) {
+        this.source = source;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    void setEnd(long end) {
+        this.end = end;
+    }
+
     final long blockSize() {
         return end - start + 1;
     }
@@ -19,84 +19,164 @@ package com.alberwall.downloader;
 import com.alberwall.downloader.exceptions.CancelException;
 import com.alberwall.downloader.exceptions.ChecksumException;
 import com.alberwall.downloader.exceptions.RequestException;
+import com.alberwall.downloader.trace.Tracer;
 
-import java.io.BufferedOutputStream;
-import java.io.FileDescriptor;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 class FileBlockDownloadTask extends Task<FileBlockRequest> {
     private static final long TIME_GAP_FOR_SYNC = 2000;
     private static final long MIN_BYTES_FOR_SYNC = 65536;
+    private static final long MAX_THROTTLE_SLICE = TimeUnit.MILLISECONDS.toNanos(100);
 
     private DownloadClient mClient;
+    private boolean mConnected;
+    private long mSampleBytes;
+    private long mSampleTime;
 
     public FileBlockDownloadTask(FileBlockRequest req, AwDownloader dl) {
         super(req, dl);
     }
 
+    /**
+     * @param connected client which has been connected at the current offset of the block,
+     *                  it is used by the first try only.
+     */
+    public FileBlockDownloadTask(FileBlockRequest req, AwDownloader dl, DownloadClient connected) {
+        super(req, dl);
+        mClient = connected;
+        mConnected = true;
+    }
+
     @Override
     public void execute() throws RequestException, IOException, CancelException {
+        boolean connected = mConnected;
+        mConnected = false;
+        if (connected && mReq.isCancelled()) {
+            Utils.disconnectSafely(mClient);
+        }
         checkCancelled("beginning download " + mReq);
 
         mReq.rawRequest.setState(DownloadRequest.STATE_DOWNLOADING);
 
         FileBlock block = mReq.fileBlock;
         if (null == mClient) {
-            mClient = DownloadClientFactory.createClient(block.source);
+            mClient = DownloadClientFactory.createClient(mDownloader, block.getSource(), mReq.rawRequest.id, block.blockIndex);
         }
 
-        long startOffset = block.start + mReq.getDownloadedBytes();
-        //noinspection unchecked
-        mClient.connect(block.source, startOffset, block.end);
+        mReq.resetReserved();
+        mSampleBytes = mReq.getDownloadedBytes();
+        mSampleTime = System.currentTimeMillis();
+        long startOffset = block.start + mSampleBytes;
+        if (!connected) {
+            Tracer.Span span = Traces.begin(mReq, Tracer.STAGE_CONNECT);
+            boolean ok = false;
+            try {
+                //noinspection unchecked
+                mClient.connect(block.getSource(), startOffset, block.getEnd());
+                ok = true;
+            } finally {
+                span.end(0, !ok);
+            }
+        }
 
+        Tracer.Span readSpan = Traces.begin(mReq, Tracer.STAGE_READ);
+        long readStartBytes = mReq.getDownloadedBytes();
+        boolean readOk = false;
         long lastSyncTime = -1;
         long lastSyncBytes = 0;
         InputStream inputStream = null;
-        BufferedOutputStream outputStream = null;
-        RandomAccessFile outputFile = null;
+        BlockOutput output = null;
+        DiskWriter.Stream stream = null;
+        ByteBuffer wrapper = null;
         try {
             inputStream = mClient.getInputStream();
-            outputFile = new RandomAccessFile(mReq.rawRequest.tmpFile, "rw");
-            FileDescriptor fd = outputFile.getFD();
-            outputStream = new BufferedOutputStream(new FileOutputStream(fd));
-
-            if (startOffset > 0) {
-                outputFile.seek(startOffset);
+            output = mReq.rawRequest.openOutput();
+            if (mDownloader.writeBehind) {
+                stream = mDownloader.dispatcher().diskWriter(mReq.rawRequest.tmpFile)
+                        .open(mReq, output, recordProgress());
             }
 
             checkCancelled("start read io" + mReq);
-            byte[] buffer = new byte[mDownloader.bufferSize];
+            wrapper = mDownloader.bufferPool().acquire(false);
+            int bufferSize = Math.min(mDownloader.bufferSize, wrapper.capacity());
+            long position = startOffset;
             int len;
-            while ((len = inputStream.read(buffer)) != -1) {
-                if (mReq.rawRequest.isCancelled()) {
-                    sync(outputStream, fd);
+            DownloadRequest rawReq = mReq.rawRequest;
+            while (!mReq.isFileBlockCompleted()
+                    && (len = inputStream.read(wrapper.array(), 0, rawReq.readLimit(bufferSize))) != -1) {
+                if (mReq.isCancelled()) {
+                    sync(output, stream);
                     throw new CancelException("Cancelled when " + "write io" + mReq); // TODO:pause
                 }
 
-                outputStream.write(buffer, 0, len);
+                len = mReq.reserve(len);
+                if (len <= 0) break;
+
+                wrapper.clear();
+                wrapper.limit(len);
+                if (null != stream) {
+                    // the writer owns the buffer and counts the bytes when they are written.
+                    stream.write(wrapper, position);
+                    wrapper = mDownloader.bufferPool().acquire(false);
+                } else {
+                    output.write(wrapper, position);
+                    mReq.setDownloadedBytes(mReq.getDownloadedBytes() + len);
+                }
+                position += len;
 
-                mReq.setDownloadedBytes(mReq.getDownloadedBytes() + len);
                 if (needSync(lastSyncBytes, lastSyncTime)) {
-                    sync(outputStream, fd);
+                    if (null != stream) {
+                        stream.requestSync();
+                    } else {
+                        mDownloader.dispatcher().sync(mReq, output, recordProgress(), true);
+                    }
+                    sampleThroughput();
 
                     lastSyncBytes = mReq.getDownloadedBytes();
                     lastSyncTime = System.currentTimeMillis();
                 }
+                throttle(rawReq.throttle(len));
+
+                // the controller retires this connection, the rest waits in the request.
+                if (mReq.retiring) {
+                    sync(output, stream);
+                    if (rawReq.park(mReq)) {
+                        stream = null;
+                        readOk = true;
+                        return;
+                    }
+                }
             }
 
-            sync(outputStream, fd);
+            sync(output, stream);
+            stream = null;
+            readOk = true;
+            sampleThroughput();
+            output.close();
+            output = null;
             if (mReq.isFileBlockCompleted()) {
+                if (mClient.isResumeSupported()) {
+                    mDownloader.dispatcher().stealTail(mReq);
+                }
                 mReq.finished();
             } else {
                 mReq.failed(new ChecksumException("Unknown io err"));
             }
         } finally {
-            Utils.closeSafely(outputFile);
+            readSpan.end(mReq.getDownloadedBytes() - readStartBytes, !readOk);
+            if (null != stream) {
+                // the queued writes must be done before the output is closed.
+                try {
+                    stream.flush();
+                } catch (IOException ignored) {
+                }
+            }
+            Utils.closeSafely(output);
             Utils.closeSafely(inputStream);
-            Utils.closeSafely(outputStream);
+            mDownloader.bufferPool().release(wrapper);
         }
     }
 
@@ -109,7 +189,7 @@ class FileBlockDownloadTask extends Task<FileBlockRequest> {
 
     @Override
     public boolean isCancelled() {
-        return mReq.rawRequest.isCancelled();
+        return mReq.isCancelled();
     }
 
     @Override
@@ -122,6 +202,22 @@ class FileBlockDownloadTask extends Task<FileBlockRequest> {
         return "dl-" + mReq.fileBlock.blockIndex + "-" + mReq.rawRequest.downloadFile.getName();
     }
 
+    /**
+     * Wait for the rate limiter in short slices to be responsive to cancel.
+     */
+    private void throttle(long nanos) throws CancelException {
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            checkCancelled("throttle " + mReq);
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(nanos, MAX_THROTTLE_SLICE));
+            } catch (InterruptedException e) {
+                throw new CancelException("Interrupted when throttle " + mReq);
+            }
+            nanos = deadline - System.nanoTime();
+        }
+    }
+
     private boolean needSync(long syncBytes, long syncTime) {
         long currentBytes = mReq.getDownloadedBytes();
         long currentTime = System.currentTimeMillis();
@@ -130,18 +226,34 @@ class FileBlockDownloadTask extends Task<FileBlockRequest> {
         return syncTime < 0 || (bytesDelta > MIN_BYTES_FOR_SYNC && timeDelta > TIME_GAP_FOR_SYNC);
     }
 
-    private void sync(BufferedOutputStream outputStream, FileDescriptor fileDescriptor)
-            throws IOException {
-        outputStream.flush();
-        fileDescriptor.sync();
-        if (mClient.isResumeSupported()) {
-            mDownloader.database().updateFileBlockProgress(
-                    mReq, mReq.getDownloadedBytes(), System.currentTimeMillis());
+    /**
+     * Feed the speed since last sample to the mirror selector.
+     */
+    private void sampleThroughput() {
+        long bytes = mReq.getDownloadedBytes();
+        long now = System.currentTimeMillis();
+        mReq.rawRequest.mirrors().record(mReq.fileBlock.getSource(), bytes - mSampleBytes, now - mSampleTime);
+        mSampleBytes = bytes;
+        mSampleTime = now;
+    }
+
+    /**
+     * @param stream not null to wait for the writes queued to the disk writer and its sync.
+     */
+    private void sync(BlockOutput output, DiskWriter.Stream stream) throws IOException {
+        if (null != stream) {
+            stream.flush();
+            return;
         }
+        mDownloader.dispatcher().sync(mReq, output, recordProgress(), false);
+    }
+
+    private boolean recordProgress() throws IOException {
+        return mClient.isResumeSupported() && !mReq.isHedge();
     }
 
     private void checkCancelled(String message) throws CancelException {
-        if (mReq.rawRequest.isCancelled()) {
+        if (mReq.isCancelled()) {
             throw new CancelException("Cancelled when " + message);
         }
     }
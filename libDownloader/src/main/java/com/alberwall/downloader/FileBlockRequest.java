@@ -18,19 +18,46 @@ package com.alberwall.downloader;
 
 import android.support.annotation.NonNull;
 
+import com.alberwall.downloader.metrics.Meter;
+import com.alberwall.downloader.metrics.Metrics;
+import com.alberwall.downloader.trace.Tracer;
+
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FileBlockRequest implements Comparable<FileBlockRequest> {
     public final DownloadRequest rawRequest;
     public final FileBlock fileBlock;
 
-    private volatile long downloadedBytes = 0;
+    private volatile long downloadedBytes = 0; // written under this, read without lock
+    private long reservedBytes = 0; // guarded by this, bytes claimed by the running task
     private final transient AtomicInteger retryTimes = new AtomicInteger(0);
+    // written by the disk writer but not reported to the listener yet.
+    private final transient AtomicLong unreportedBytes = new AtomicLong(0);
+    // progress not metered yet, the listener meters once per speed sample.
+    private final transient AtomicLong unmeteredBytes = new AtomicLong(0);
     private InternalListener listener;
     private transient TaskRunnable runner;
 
     private volatile boolean markDelivered = false;
+    private volatile boolean cancelled = false;
+    private volatile long attemptStartTime;
+    private volatile long attemptStartBytes;
+    // progress last delivered to the block listener, by the writing thread.
+    private transient long deliveredTime = 0;
+    private transient long deliveredBytes = -1;
+    // meter of the host of hostSource, by the writing thread.
+    private transient Meter hostMeter;
+    private transient Source hostSource;
+    private final transient SpeedEstimator speed = new SpeedEstimator();
+
+    // duplicate fetch racing with this block for its rest, guarded by rawRequest.
+    transient FileBlockRequest hedge;
+    // the straggler this hedge races with, null if this is not a hedge.
+    transient FileBlockRequest hedgeOf;
+    // asked by the connection controller to give the rest back, set under rawRequest.
+    transient volatile boolean retiring;
 
     public FileBlockRequest(@NonNull DownloadRequest req, @NonNull FileBlock block) {
         this(req, block, 0);
@@ -40,6 +67,7 @@ public class FileBlockRequest implements Comparable<FileBlockRequest> {
         rawRequest = req;
         fileBlock = block;
         downloadedBytes = curDownloadedBytes;
+        reservedBytes = curDownloadedBytes;
 
         listener = req.getInnerListener();
     }
@@ -53,32 +81,207 @@ public class FileBlockRequest implements Comparable<FileBlockRequest> {
     }
 
     void setDownloadedBytes(long bytes) {
-        if (bytes != downloadedBytes) {
+        long delta;
+        synchronized (this) {
+            delta = bytes - downloadedBytes;
             downloadedBytes = bytes;
+        }
+        if (delta != 0) {
+            listener.onProgress(this, delta);
+        }
+    }
+
+    /**
+     * Count bytes written by the disk writer without calling the listener on its thread,
+     * the task reports them with {@link #reportProgress()}.
+     */
+    synchronized void addWrittenBytes(long len) {
+        downloadedBytes += len;
+        unreportedBytes.addAndGet(len);
+    }
 
-            listener.onProgress(this, downloadedBytes, rawRequest.totalLength);
+    void reportProgress() {
+        long delta = unreportedBytes.getAndSet(0);
+        if (delta != 0) {
+            listener.onProgress(this, delta);
         }
     }
 
+    /**
+     * Called when a task starts downloading this block, bytes claimed by the previous
+     * attempt but never written will be downloaded again.
+     */
+    synchronized void resetReserved() {
+        reservedBytes = downloadedBytes;
+        attemptStartBytes = downloadedBytes;
+        attemptStartTime = System.currentTimeMillis();
+        speed.reset();
+    }
+
+    /**
+     * @return bytes per ms of the running attempt, smoothed once it has been sampled,
+     * or -1 if it has not run for minElapsed.
+     */
+    double attemptRate(long now, long minElapsed) {
+        long startTime = attemptStartTime;
+        long elapsed = now - startTime;
+        if (startTime <= 0 || elapsed < minElapsed) return -1;
+        double rate = getSpeedRate();
+        if (rate >= 0) return rate / 1000;
+        return (double) (downloadedBytes - attemptStartBytes) / elapsed;
+    }
+
+    /**
+     * Called with the progress of this block.
+     * @return true if a sample has been taken, once per interval of the estimator
+     */
+    boolean sampleSpeed(long now) {
+        if (!speed.isDue(now)) return false;
+        speed.sample(now, downloadedBytes);
+        return true;
+    }
+
+    void addUnmeteredBytes(long len) {
+        unmeteredBytes.addAndGet(len);
+    }
+
+    long takeUnmeteredBytes() {
+        return unmeteredBytes.getAndSet(0);
+    }
+
+    /**
+     * @return bytes per second of the running attempt, -1 if unknown
+     */
+    double getSpeedRate() {
+        // sample while running, so that the speed falls when the progress stalls.
+        if (attemptStartTime > 0 && !isFileBlockCompleted()) {
+            sampleSpeed(System.currentTimeMillis());
+        }
+        return speed.getRate();
+    }
+
+    /**
+     * @return smoothed speed of this block in bytes per second, 0 until it is known
+     */
+    public long getSpeed() {
+        double rate = getSpeedRate();
+        return rate < 0 ? 0 : (long) rate;
+    }
+
+    /**
+     * @return estimated ms until this block completes, -1 until it is known
+     */
+    public long getEta() {
+        getSpeedRate();
+        return speed.eta(fileBlock.blockSize() - downloadedBytes);
+    }
+
+    /**
+     * Claim the next bytes of this block before writing them.
+     * @param len bytes have been read
+     * @return bytes can be written, less than len if the tail of this block has been stolen.
+     */
+    synchronized int reserve(int len) {
+        long remaining = fileBlock.blockSize() - reservedBytes;
+        int n = (int) Math.max(0, Math.min(len, remaining));
+        reservedBytes += n;
+        return n;
+    }
+
+    synchronized long remainingBytes() {
+        return fileBlock.blockSize() - reservedBytes;
+    }
+
+    /**
+     * @return the first position which has not been claimed yet.
+     */
+    synchronized long reservedPosition() {
+        return fileBlock.start + reservedBytes;
+    }
+
+    /**
+     * Give up the range after end which has been downloaded by someone else, bytes which
+     * have been claimed are kept.
+     * @return the end of this block
+     */
+    synchronized long truncate(long end) {
+        long newEnd = Math.max(end, fileBlock.start + reservedBytes - 1);
+        if (newEnd < fileBlock.getEnd()) {
+            fileBlock.setEnd(newEnd);
+        }
+        return fileBlock.getEnd();
+    }
+
+    /**
+     * Shrink this block to the first half of its unclaimed range.
+     * @param blockIndex index of the new block
+     * @param minBlockSize the new block and what left in this one should be larger than it
+     * @return a new block for the second half, or null if the block is too small to split.
+     */
+    synchronized FileBlock splitTail(int blockIndex, long minBlockSize) {
+        long pos = fileBlock.start + reservedBytes;
+        long remaining = fileBlock.getEnd() - pos + 1;
+        if (remaining < 2 * minBlockSize) return null;
+
+        long oldEnd = fileBlock.getEnd();
+        long mid = pos + remaining / 2;
+        fileBlock.setEnd(mid - 1);
+        return new FileBlock(fileBlock.getSource(), blockIndex, mid, oldEnd);
+    }
+
+    /**
+     * Called by the thread which writes this block.
+     * @return true if the progress should be delivered to the block listener now.
+     */
+    boolean isProgressDue(long now, long interval, long step) {
+        long bytes = downloadedBytes;
+        if (bytes == deliveredBytes) return false;
+        if (!DownloadRequest.isProgressDue(now - deliveredTime, bytes - deliveredBytes, interval, step)
+                && !isFileBlockCompleted()) {
+            return false;
+        }
+        deliveredTime = now;
+        deliveredBytes = bytes;
+        return true;
+    }
+
+    /**
+     * Called by the thread which writes this block.
+     * @return the meter of the host this block is downloaded from
+     */
+    Meter hostMeter(Metrics metrics) {
+        Source source = fileBlock.getSource();
+        if (source != hostSource) {
+            hostMeter = metrics.meter(Metrics.BYTES_HOST + Dispatcher.hostOf(source));
+            hostSource = source;
+        }
+        return hostMeter;
+    }
+
     boolean isFileBlockCompleted() {
         return fileBlock.blockSize() <= downloadedBytes;
     }
 
     void finished() {
-        if (markDelivered) return;
+        synchronized (this) {
+            if (markDelivered) return;
+            markDelivered = true;
+        }
 
-        markDelivered = true;
         listener.onCompleted(this);
     }
 
     void failed(Exception e) {
-        if (markDelivered) return;
+        synchronized (this) {
+            if (markDelivered) return;
+            markDelivered = !canRetry(e);
+        }
 
-        markDelivered = !canRetry(e);
         listener.onFailed(this, e);
     }
 
     void cancel(boolean notify) {
+        cancelled = true;
         if (!notify) {
             markDelivered = true;
         }
@@ -89,6 +292,17 @@ public class FileBlockRequest implements Comparable<FileBlockRequest> {
         }
     }
 
+    /**
+     * @return true if this block or the whole request is cancelled.
+     */
+    boolean isCancelled() {
+        return cancelled || rawRequest.isCancelled();
+    }
+
+    boolean isHedge() {
+        return null != hedgeOf;
+    }
+
     TaskRunnable getRunner() {
         return runner;
     }
@@ -98,12 +312,15 @@ public class FileBlockRequest implements Comparable<FileBlockRequest> {
     }
 
     boolean canRetry(Exception e) {
+        // one more chance for each extra mirror
         return e instanceof IOException &&
-                retryTimes.get() < rawRequest.maxRetryTimes;
+                retryTimes.get() < rawRequest.maxRetryTimes + rawRequest.source.length - 1;
     }
 
     void incrementRetry() {
         retryTimes.incrementAndGet();
+        rawRequest.downloader().dispatcher().retries().add(1);
+        Traces.mark(this, Tracer.STAGE_RETRY, downloadedBytes);
     }
 
     int getRetryTimes() {
@@ -128,7 +345,10 @@ public class FileBlockRequest implements Comparable<FileBlockRequest> {
     }
 
     interface InternalListener {
-        void onProgress(FileBlockRequest blockRequest, long downloadedBytes, long totalBytes);
+        /**
+         * @param deltaBytes bytes downloaded since the last call
+         */
+        void onProgress(FileBlockRequest blockRequest, long deltaBytes);
 
         void onCompleted(FileBlockRequest blockRequest);
 
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import com.alberwall.downloader.exceptions.CancelException;
+import com.alberwall.downloader.exceptions.RequestException;
+import com.alberwall.downloader.exceptions.ResponseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A client which calls through to another, an {@link Interceptor} overrides what it hooks.
+ */
+public class ForwardingClient<P extends ProtocolParameters> implements RangeProbeClient<P> {
+    protected final DownloadClient<P> delegate;
+
+    public ForwardingClient(DownloadClient<P> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public long queryFileLength(Source<P> source)
+            throws IOException, CancelException, RequestException, ResponseException {
+        return delegate.queryFileLength(source);
+    }
+
+    @Override
+    public void connect(Source<P> source, long start, long end)
+            throws IOException, CancelException, RequestException {
+        delegate.connect(source, start, end);
+    }
+
+    /**
+     * @throws ResponseException if the client at the end of the chain does not tell the length,
+     * see {@link #isRangeProbeSupported(DownloadClient)}
+     */
+    @Override
+    public long getTotalLength() throws ResponseException {
+        if (!(delegate instanceof RangeProbeClient)) {
+            throw new ResponseException("Total length is unknown to " + delegate.getClass().getName());
+        }
+        return ((RangeProbeClient<P>) delegate).getTotalLength();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return delegate.getInputStream();
+    }
+
+    @Override
+    public boolean isResumeSupported() throws IOException {
+        return delegate.isResumeSupported();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    /**
+     * @return true if the client, or the one a chain of forwarding clients ends with,
+     * is a {@link RangeProbeClient}.
+     */
+    static boolean isRangeProbeSupported(DownloadClient client) {
+        while (client instanceof ForwardingClient) {
+            client = ((ForwardingClient) client).delegate;
+        }
+        return client instanceof RangeProbeClient;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import com.alberwall.downloader.db.BatchProgressDatabase;
+import com.alberwall.downloader.db.DownloadDatabase;
+import com.alberwall.downloader.trace.Tracer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit of {@link AwDownloader#DURABILITY_GROUP_COMMIT}: blocks are marked dirty
+ * instead of syncing themselves, one thread syncs each temp file with dirty blocks once
+ * per interval and then saves the progress of all of them in one batch.
+ * Memory-mapped outputs are synced one by one, forcing the channel does not write their pages.
+ */
+final class GroupSyncer implements Runnable {
+    private final AwDownloader mDownloader;
+    private final long mInterval;
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    // guarded by this
+    private Map<FileBlockRequest, BlockOutput> mDirty = new LinkedHashMap<>();
+    private boolean mScheduled = false;
+
+    GroupSyncer(AwDownloader downloader, long interval) {
+        mDownloader = downloader;
+        mInterval = interval;
+        mTimer = new ScheduledThreadPoolExecutor(1);
+        mTimer.setKeepAliveTime(interval * 2, TimeUnit.MILLISECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param output where the block is written
+     */
+    void markDirty(FileBlockRequest req, BlockOutput output) {
+        synchronized (this) {
+            mDirty.put(req, output);
+            if (mScheduled) return;
+            mScheduled = true;
+        }
+        try {
+            mTimer.schedule(this, mInterval, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutdown, the progress is saved by the last sync of each block.
+        }
+    }
+
+    void shutdown() {
+        mTimer.shutdown();
+    }
+
+    @Override
+    public void run() {
+        Map<FileBlockRequest, BlockOutput> dirty;
+        synchronized (this) {
+            dirty = mDirty;
+            mDirty = new LinkedHashMap<>();
+            mScheduled = false;
+        }
+
+        Map<DownloadRequest, List<FileBlockRequest>> byFile = new LinkedHashMap<>();
+        for (FileBlockRequest req : dirty.keySet()) {
+            List<FileBlockRequest> blocks = byFile.get(req.rawRequest);
+            if (null == blocks) {
+                blocks = new ArrayList<>();
+                byFile.put(req.rawRequest, blocks);
+            }
+            blocks.add(req);
+        }
+
+        List<FileBlockRequest> synced = new ArrayList<>(dirty.size());
+        List<Long> bytes = new ArrayList<>(dirty.size());
+        for (Map.Entry<DownloadRequest, List<FileBlockRequest>> e : byFile.entrySet()) {
+            DownloadRequest rawReq = e.getKey();
+            if (isOver(rawReq)) continue;
+            // not open if all its blocks are over, their last syncs have saved the progress.
+            FileChannel channel = rawReq.acquireOpenedOutput();
+            if (null == channel) continue;
+
+            try {
+                // what has been written before the sync is durable after it.
+                int first = synced.size();
+                for (FileBlockRequest req : e.getValue()) {
+                    synced.add(req);
+                    bytes.add(req.getDownloadedBytes());
+                }
+                Tracer.Span span = Traces.begin(mDownloader, Tracer.STAGE_FSYNC, rawReq.id, -1, null);
+                try {
+                    long start = System.nanoTime();
+                    boolean forceChannel = false;
+                    for (FileBlockRequest req : e.getValue()) {
+                        BlockOutput output = dirty.get(req);
+                        if (output instanceof MappedOutput) {
+                            output.sync();
+                        } else {
+                            forceChannel = true;
+                        }
+                    }
+                    if (forceChannel) {
+                        channel.force(false);
+                    }
+                    mDownloader.dispatcher().fsyncTime().recordNanos(System.nanoTime() - start);
+                    span.end(rawReq.getDownloadedBytes(), false);
+                } catch (IOException ex) {
+                    span.end(rawReq.getDownloadedBytes(), true);
+                    // the block tasks fail on their own writes, save nothing of this file.
+                    synced.subList(first, synced.size()).clear();
+                    bytes.subList(first, bytes.size()).clear();
+                }
+            } finally {
+                rawReq.releaseOutput();
+            }
+        }
+        if (synced.isEmpty()) return;
+
+        List<DownloadRequest> requests = new ArrayList<>();
+        for (FileBlockRequest req : synced) {
+            if (!requests.contains(req.rawRequest)) requests.add(req.rawRequest);
+        }
+        save(requests, 0, synced, bytes);
+    }
+
+    /**
+     * Saves the progress while holding the locks of all the requests, a request which
+     * completes or fails in between would have its removed records brought back.
+     * Only this thread holds more than one request lock at a time.
+     */
+    private void save(List<DownloadRequest> requests, int index,
+                      List<FileBlockRequest> synced, List<Long> bytes) {
+        if (index < requests.size()) {
+            synchronized (requests.get(index)) {
+                save(requests, index + 1, synced, bytes);
+            }
+            return;
+        }
+
+        // a request which is over has removed its records, do not bring them back.
+        for (int i = synced.size() - 1; i >= 0; i--) {
+            if (isOver(synced.get(i).rawRequest)) {
+                synced.remove(i);
+                bytes.remove(i);
+            }
+        }
+        if (synced.isEmpty()) return;
+
+        long[] downloaded = new long[bytes.size()];
+        long total = 0;
+        for (int i = 0; i < downloaded.length; i++) {
+            downloaded[i] = bytes.get(i);
+            total += downloaded[i];
+        }
+        // one write of several requests.
+        Tracer.Span span = Traces.begin(mDownloader, Tracer.STAGE_DB_PROGRESS, -1, -1, null);
+        DownloadDatabase db = mDownloader.database();
+        long now = System.currentTimeMillis();
+        if (db instanceof BatchProgressDatabase) {
+            ((BatchProgressDatabase) db).updateFileBlockProgress(synced, downloaded, now);
+        } else {
+            for (int i = 0; i < downloaded.length; i++) {
+                db.updateFileBlockProgress(synced.get(i), downloaded[i], now);
+            }
+        }
+        span.end(total, false);
+    }
+
+    private static boolean isOver(DownloadRequest req) {
+        int state = req.getState();
+        return state == DownloadRequest.STATE_COMPLETED || state == DownloadRequest.STATE_FAILED;
+    }
+}
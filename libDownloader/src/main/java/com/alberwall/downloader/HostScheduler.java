@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import com.alberwall.downloader.exceptions.RequestException;
+import com.alberwall.downloader.metrics.Histogram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Admits tasks to the executor with a limit of running tasks in total and per host,
+ * each host has its own queue. The next task is the head of highest priority among the
+ * hosts under limit, hosts of equal priority take turns.
+ * A task holds its slot until {@link Task#done()}, which an asynchronous task calls by itself
+ * when it is over.
+ * Tasks which run on an event loop rather than hold a pool thread have their own total limit,
+ * but share the limit per host with the others.
+ */
+final class HostScheduler {
+    private final Executor mExecutor;
+    private final int mMaxRunning;
+    private final int mMaxLoopRunning;
+    private final int mMaxPerHost;
+    private final Histogram mWaitTime;
+
+    // guarded by this
+    private final Map<String, HostQueue> mHosts = new HashMap<>();
+    private final List<HostQueue> mOrder = new ArrayList<>();
+    private int mCursor = 0;
+    private int mRunning = 0;
+    private int mLoopRunning = 0;
+    private int mQueued = 0;
+    private boolean mShutdown = false;
+
+    /**
+     * @param waitTime records how long tasks wait in the queues
+     */
+    HostScheduler(Executor executor, int maxRunning, int maxPerHost, Histogram waitTime) {
+        this(executor, maxRunning, 0, maxPerHost, waitTime);
+    }
+
+    /**
+     * @param maxLoopRunning limit of running tasks which are executed on an event loop
+     */
+    HostScheduler(Executor executor, int maxRunning, int maxLoopRunning, int maxPerHost,
+                  Histogram waitTime) {
+        mExecutor = executor;
+        mMaxRunning = maxRunning;
+        mMaxLoopRunning = maxLoopRunning;
+        mMaxPerHost = maxPerHost;
+        mWaitTime = waitTime;
+    }
+
+    void execute(TaskRunnable task, String host, int priority) throws RejectedExecutionException {
+        execute(task, host, priority, false);
+    }
+
+    /**
+     * @param onLoop true if the task runs on an event loop and does not hold a pool thread
+     *               until it is done
+     */
+    void execute(TaskRunnable task, String host, int priority, boolean onLoop)
+            throws RejectedExecutionException {
+        synchronized (this) {
+            if (mShutdown) throw new RejectedExecutionException("Scheduler has been shutdown");
+
+            HostQueue queue = mHosts.get(host);
+            if (null == queue) {
+                queue = new HostQueue(host);
+                mHosts.put(host, queue);
+                mOrder.add(queue);
+            }
+            queue.tasks.add(new Entry(task, priority, onLoop));
+            mQueued++;
+        }
+        drain();
+    }
+
+    /**
+     * Run a pool task at once if there is a slot for it and no task of the host is waiting.
+     * @return false if the task would have to wait, it is not queued then
+     */
+    boolean tryExecute(TaskRunnable task, String host, int priority) throws RejectedExecutionException {
+        HostQueue queue;
+        synchronized (this) {
+            if (mShutdown) throw new RejectedExecutionException("Scheduler has been shutdown");
+
+            queue = mHosts.get(host);
+            if (mRunning >= mMaxRunning || (null != queue
+                    && (queue.running >= mMaxPerHost || !queue.tasks.isEmpty()))) {
+                return false;
+            }
+            if (null == queue) {
+                queue = new HostQueue(host);
+                mHosts.put(host, queue);
+                mOrder.add(queue);
+            }
+            queue.running++;
+            mRunning++;
+        }
+        start(queue, new Entry(task, priority, false));
+        return true;
+    }
+
+    synchronized void shutdown() {
+        mShutdown = true;
+    }
+
+    /**
+     * @return tasks waiting for a slot
+     */
+    synchronized int getQueuedCount() {
+        return mQueued;
+    }
+
+    synchronized int getRunningCount() {
+        return mRunning + mLoopRunning;
+    }
+
+    synchronized int getRunningCount(String host) {
+        HostQueue queue = mHosts.get(host);
+        return null == queue ? 0 : queue.running;
+    }
+
+    private void drain() {
+        while (true) {
+            HostQueue queue;
+            Entry entry;
+            synchronized (this) {
+                queue = pollHost();
+                if (null == queue) return;
+
+                entry = queue.tasks.poll();
+                queue.running++;
+                if (entry.onLoop) {
+                    mLoopRunning++;
+                } else {
+                    mRunning++;
+                }
+                mQueued--;
+            }
+            start(queue, entry);
+        }
+    }
+
+    /**
+     * Hand a task which has taken its slot to the executor.
+     */
+    private void start(final HostQueue queue, final Entry entry) {
+        mWaitTime.recordNanos(System.nanoTime() - entry.enqueueTime);
+
+        entry.task.setDoneHook(new Runnable() {
+            @Override
+            public void run() {
+                finished(queue, entry.onLoop);
+            }
+        });
+        try {
+            mExecutor.execute(entry.task);
+        } catch (RejectedExecutionException e) {
+            finished(queue, entry.onLoop);
+            Task t = entry.task.getRealTask();
+            if (null != t) {
+                t.failed(new RequestException("Rejected when schedule " + t.getTaskName()));
+            }
+        }
+    }
+
+    private void finished(HostQueue queue, boolean onLoop) {
+        synchronized (this) {
+            queue.running--;
+            if (onLoop) {
+                mLoopRunning--;
+            } else {
+                mRunning--;
+            }
+            if (queue.running == 0 && queue.tasks.isEmpty()) {
+                int i = mOrder.indexOf(queue);
+                mOrder.remove(i);
+                if (i < mCursor) mCursor--;
+                mHosts.remove(queue.host);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * @return the host whose head task goes next, or null if nothing can run now.
+     */
+    private HostQueue pollHost() {
+        boolean poolFull = mRunning >= mMaxRunning;
+        boolean loopFull = mLoopRunning >= mMaxLoopRunning;
+        if (poolFull && loopFull) return null;
+
+        int n = mOrder.size();
+        HostQueue best = null;
+        int bestIndex = -1;
+        for (int k = 0; k < n; k++) {
+            int i = (mCursor + k) % n;
+            HostQueue queue = mOrder.get(i);
+            Entry head = queue.tasks.peek();
+            if (null == head || queue.running >= mMaxPerHost
+                    || (head.onLoop ? loopFull : poolFull)) continue;
+
+            // the first one found wins a tie, so that hosts take turns.
+            if (null == best || head.priority > best.tasks.peek().priority) {
+                best = queue;
+                bestIndex = i;
+            }
+        }
+        if (null != best) {
+            mCursor = (bestIndex + 1) % n;
+        }
+        return best;
+    }
+
+    private static final class HostQueue {
+        final String host;
+        final PriorityQueue<Entry> tasks = new PriorityQueue<>();
+        int running = 0;
+
+        HostQueue(String host) {
+            this.host = host;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final TaskRunnable task;
+        final int priority;
+        final boolean onLoop;
+        final long enqueueTime = System.nanoTime();
+
+        Entry(TaskRunnable task, int priority, boolean onLoop) {
+            this.task = task;
+            this.priority = priority;
+            this.onLoop = onLoop;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return task.compareTo(o.task);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+/**
+ * Hooks into the clients of a downloader, e.g. to rewrite urls, add headers, cache or time
+ * responses. Each interceptor wraps the client of the next one, the first added is the
+ * outermost, so it sees the calls first and the results last.
+ * Block tasks of the nio engine do not use clients, so the engine can not be used with interceptors.
+ */
+public interface Interceptor {
+    /**
+     * @param next the client to call through, created for source
+     * @return a client which wraps next, see {@link ForwardingClient}, or next itself
+     */
+    DownloadClient intercept(DownloadClient next, Source source);
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Delivers the events of one request to its listeners on the delivery executor, in order and
+ * one at a time. A progress event which has not been delivered yet takes the newer bytes
+ * instead of queueing another one, so a slow listener gets fewer progress events rather than
+ * stalling the downloads or piling them up. Other events are never merged or dropped.
+ */
+final class ListenerQueue implements Runnable {
+    private static final int PROGRESS = 0;
+    private static final int BLOCK_PROGRESS = 1;
+    private static final int COMPLETED = 2;
+    private static final int BLOCK_COMPLETED = 3;
+    private static final int FAILED = 4;
+    private static final int BLOCK_FAILED = 5;
+
+    private final DownloadRequest mReq;
+    private final Executor mExecutor;
+
+    // guarded by this
+    private final ArrayDeque<Event> mEvents = new ArrayDeque<>();
+    private Event mPendingProgress;
+    private long mQueuedBytes = -1; // the highest progress queued
+    private final Map<FileBlockRequest, Event> mPendingBlockProgress = new IdentityHashMap<>();
+    private boolean mScheduled = false;
+
+    ListenerQueue(DownloadRequest req, Executor executor) {
+        mReq = req;
+        mExecutor = executor;
+    }
+
+    void progress(long downloadedBytes) {
+        synchronized (this) {
+            // threads may post out of order, even after the newer one has been delivered,
+            // progress never goes back.
+            if (downloadedBytes <= mQueuedBytes) return;
+            mQueuedBytes = downloadedBytes;
+            if (null != mPendingProgress) {
+                mPendingProgress.bytes = downloadedBytes;
+                return;
+            }
+            mPendingProgress = new Event(PROGRESS, null, null, downloadedBytes, null);
+            mEvents.add(mPendingProgress);
+        }
+        schedule();
+    }
+
+    void progress(FileBlockRequest blockReq, long downloadedBytes) {
+        synchronized (this) {
+            Event pending = mPendingBlockProgress.get(blockReq);
+            if (null != pending) {
+                pending.bytes = Math.max(pending.bytes, downloadedBytes);
+                return;
+            }
+            pending = new Event(BLOCK_PROGRESS, blockReq.fileBlock, blockReq, downloadedBytes, null);
+            mPendingBlockProgress.put(blockReq, pending);
+            mEvents.add(pending);
+        }
+        schedule();
+    }
+
+    void completed() {
+        post(new Event(COMPLETED, null, null, 0, null));
+    }
+
+    void completed(FileBlock block) {
+        post(new Event(BLOCK_COMPLETED, block, null, 0, null));
+    }
+
+    void failed(Exception error) {
+        post(new Event(FAILED, null, null, 0, error));
+    }
+
+    void failed(FileBlock block, Exception error) {
+        post(new Event(BLOCK_FAILED, block, null, 0, error));
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Event e;
+            synchronized (this) {
+                e = mEvents.poll();
+                if (null == e) {
+                    mScheduled = false;
+                    return;
+                }
+                // from now on a new progress is queued after this one.
+                if (e == mPendingProgress) {
+                    mPendingProgress = null;
+                } else if (e.type == BLOCK_PROGRESS) {
+                    mPendingBlockProgress.remove(e.blockReq);
+                }
+            }
+
+            try {
+                deliver(e);
+            } catch (RuntimeException ex) {
+                // keep delivering the rest.
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void post(Event e) {
+        synchronized (this) {
+            mEvents.add(e);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (mScheduled) return;
+            mScheduled = true;
+        }
+        try {
+            mExecutor.execute(this);
+        } catch (RejectedExecutionException e) {
+            // never drop an event, deliver here instead.
+            run();
+        }
+    }
+
+    private void deliver(Event e) {
+        OnDownloadListener l = mReq.downloadListener;
+        OnDownloadBlockListener bl = mReq.blockDownloadListener;
+        switch (e.type) {
+            case PROGRESS:
+                Dispatcher.notifyProgress(mReq, e.bytes);
+                break;
+            case COMPLETED:
+                if (null != l) l.onCompleted();
+                break;
+            case FAILED:
+                if (null != l) l.onFailed(e.error);
+                break;
+            case BLOCK_PROGRESS:
+                Dispatcher.notifyProgress(mReq, e.blockReq, e.bytes);
+                break;
+            case BLOCK_COMPLETED:
+                if (null != bl) bl.onCompleted(e.block);
+                break;
+            case BLOCK_FAILED:
+                if (null != bl) bl.onFailed(e.block, e.error);
+                break;
+        }
+    }
+
+    private static final class Event {
+        final int type;
+        final FileBlock block;
+        final FileBlockRequest blockReq; // of a block progress
+        long bytes; // guarded by the queue until polled
+        final Exception error;
+
+        Event(int type, FileBlock block, FileBlockRequest blockReq, long bytes, Exception error) {
+            this.type = type;
+            this.block = block;
+            this.blockReq = blockReq;
+            this.bytes = bytes;
+            this.error = error;
+        }
+    }
+}
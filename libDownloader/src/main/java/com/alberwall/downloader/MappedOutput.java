@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes into a memory-mapped window of the temp file, so that a write is a copy to the
+ * page cache instead of a system call. The window moves along the block, the file must
+ * have been sized to the total length.
+ */
+class MappedOutput implements BlockOutput {
+    private final DownloadRequest mReq;
+    private final long mWindowSize;
+    private FileChannel mChannel;
+    // read by the group syncer, which forces the current window.
+    private volatile MappedByteBuffer mWindow;
+    private long mWindowStart;
+
+    MappedOutput(DownloadRequest req, long windowSize) throws IOException {
+        mReq = req;
+        mWindowSize = windowSize;
+        mChannel = req.acquireOutput();
+    }
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            if (null == mWindow || position < mWindowStart
+                    || position >= mWindowStart + mWindow.capacity()) {
+                map(position);
+            }
+
+            int offset = (int) (position - mWindowStart);
+            int n = Math.min(src.remaining(), mWindow.capacity() - offset);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            mWindow.position(offset);
+            mWindow.put(part);
+            src.position(src.position() + n);
+            position += n;
+        }
+    }
+
+    @Override
+    public void sync() {
+        MappedByteBuffer window = mWindow;
+        if (null != window) {
+            window.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (null == mChannel) return;
+        sync();
+        mWindow = null; // unmapped by GC
+        mChannel = null;
+        mReq.releaseOutput();
+    }
+
+    private void map(long position) throws IOException {
+        sync();
+        long size = Math.min(mWindowSize, mReq.totalLength - position);
+        if (size <= 0) throw new IOException("Write beyond the end of file at " + position);
+
+        mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        mWindowStart = position;
+    }
+}
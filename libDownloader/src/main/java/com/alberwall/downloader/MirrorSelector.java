@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+/**
+ * Picks the mirror for a block of one request by smooth weighted round-robin, the weight
+ * of a mirror is its measured throughput. A mirror which has not been measured yet takes
+ * the average weight so that it will be tried, a failed one is skipped for a while.
+ */
+class MirrorSelector {
+    private static final long FAILURE_PENALTY = 30_000; // ms
+    private static final double SMOOTHING = 0.3;
+
+    private final Source[] mSources;
+    private final double[] mThroughput; // bytes per ms, 0 if not measured
+    private final long[] mCurrentWeight;
+    private final long[] mFailedTime;
+
+    MirrorSelector(Source[] sources) {
+        mSources = sources;
+        mThroughput = new double[sources.length];
+        mCurrentWeight = new long[sources.length];
+        mFailedTime = new long[sources.length];
+    }
+
+    synchronized Source next() {
+        return select(-1);
+    }
+
+    /**
+     * @return another mirror than the given one, or the same if there is only one.
+     */
+    synchronized Source nextExcept(Source source) {
+        return select(indexOf(source));
+    }
+
+    /**
+     * Feed the bytes downloaded from the mirror in a period.
+     */
+    synchronized void record(Source source, long bytes, long elapsedMs) {
+        int i = indexOf(source);
+        if (i < 0 || bytes <= 0) return;
+
+        double rate = (double) bytes / Math.max(1, elapsedMs);
+        mThroughput[i] = mThroughput[i] <= 0 ? rate : mThroughput[i] + SMOOTHING * (rate - mThroughput[i]);
+        mFailedTime[i] = 0;
+    }
+
+    synchronized void fail(Source source) {
+        int i = indexOf(source);
+        if (i >= 0) {
+            mFailedTime[i] = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return measured throughput of the mirror in bytes per second, 0 if unknown.
+     */
+    synchronized long throughput(Source source) {
+        int i = indexOf(source);
+        return i < 0 ? 0 : (long) (mThroughput[i] * 1000);
+    }
+
+    private Source select(int excluded) {
+        int n = mSources.length;
+        if (n == 1) return mSources[0];
+
+        long now = System.currentTimeMillis();
+        boolean[] usable = new boolean[n];
+        int usableCount = 0;
+        for (int i = 0; i < n; i++) {
+            usable[i] = i != excluded && now - mFailedTime[i] >= FAILURE_PENALTY;
+            if (usable[i]) usableCount++;
+        }
+        if (usableCount == 0) { // all failed recently, still avoid the excluded one.
+            for (int i = 0; i < n; i++) {
+                usable[i] = i != excluded;
+            }
+        }
+
+        double sum = 0;
+        int measured = 0;
+        for (int i = 0; i < n; i++) {
+            if (usable[i] && mThroughput[i] > 0) {
+                sum += mThroughput[i];
+                measured++;
+            }
+        }
+        double average = measured == 0 ? 1 : sum / measured;
+
+        long total = 0;
+        int best = -1;
+        for (int i = 0; i < n; i++) {
+            if (!usable[i]) continue;
+            // weight in KB/s, at least 1
+            long weight = Math.max(1, (long) ((mThroughput[i] > 0 ? mThroughput[i] : average) * 1000 / 1024));
+            if (measured == 0) weight = 1;
+            mCurrentWeight[i] += weight;
+            total += weight;
+            if (best < 0 || mCurrentWeight[i] > mCurrentWeight[best]) {
+                best = i;
+            }
+        }
+        mCurrentWeight[best] -= total;
+        return mSources[best];
+    }
+
+    private int indexOf(Source source) {
+        if (null == source) return -1;
+        for (int i = 0; i < mSources.length; i++) {
+            if (mSources[i] == source) return i;
+        }
+        for (int i = 0; i < mSources.length; i++) {
+            if (mSources[i].equals(source)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,649 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import com.alberwall.downloader.exceptions.CancelException;
+import com.alberwall.downloader.exceptions.ChecksumException;
+import com.alberwall.downloader.exceptions.RequestException;
+import com.alberwall.downloader.exceptions.ResponseException;
+import com.alberwall.downloader.exceptions.TryTooMuchException;
+import com.alberwall.downloader.http.HTTP;
+import com.alberwall.downloader.http.HttpParameters;
+import com.alberwall.downloader.http.HttpRequestHead;
+import com.alberwall.downloader.http.HttpResponseHead;
+import com.alberwall.downloader.http.HttpSource;
+import com.alberwall.downloader.http.NioHttpClient;
+import com.alberwall.downloader.metrics.Metrics;
+import com.alberwall.downloader.trace.Tracer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Downloads a block of plain http source on an event loop of {@link NioEngine},
+ * {@link #execute()} only resolves the address and returns, the transfer goes on
+ * without holding a thread.
+ */
+class NioBlockTask extends Task<FileBlockRequest> {
+    private static final long TIME_GAP_FOR_SYNC = 2000;
+    private static final long MIN_BYTES_FOR_SYNC = 65536;
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_WRITING = 1;
+    private static final int STATE_READING_HEAD = 2;
+    private static final int STATE_READING_BODY = 3;
+    private static final int STATE_DONE = 4;
+
+    private final NioEngine mEngine;
+    private volatile NioEngine.EventLoop mLoop;
+    private volatile boolean mCancelRequested = false; // a cancel may come before the loop
+    private volatile IOException mSyncError; // of a periodic sync on the worker
+
+    // Following fields are only accessed on the event loop after execute().
+    private int mState = STATE_CONNECTING;
+    private URL mUrl;
+    private String mHost;
+    private int mPort;
+    private InetSocketAddress mAddress;
+    private ByteBuffer mRequest;
+    private ByteBuffer mBuffer;
+    private SocketChannel mChannel;
+    private boolean mReused;
+    private boolean mKeepAlive;
+    private SelectionKey mKey;
+    private BlockOutput mOutput;
+    private long mStartOffset;
+    private long mSampleBytes;
+    private long mSampleTime;
+    private long mBodyRemaining;
+    private int mRedirectTimes = 0;
+    private boolean mResumeSupported;
+    private long mLastActiveTime;
+    private long mResumeTime = 0; // nanoTime to read again, 0 if not paused.
+    private long mLastSyncTime = -1;
+    private long mLastSyncBytes = 0;
+    private long mConnectStartTime; // nanoTime
+    private long mConnectedTime = 0; // nanoTime, 0 once the response head has been read
+    private Tracer.Span mConnectSpan; // from the first connect until the head of the response
+    private Tracer.Span mReadSpan;
+    private long mReadStartBytes;
+
+    NioBlockTask(FileBlockRequest req, AwDownloader dl, NioEngine engine) {
+        super(req, dl);
+        mEngine = engine;
+    }
+
+    static boolean isSupported(Source source) {
+        return NioHttpClient.isSupported(source);
+    }
+
+    @Override
+    public void execute() throws RequestException, IOException, CancelException {
+        checkCancelled("beginning download " + mReq);
+
+        mReq.rawRequest.setState(DownloadRequest.STATE_DOWNLOADING);
+        mReq.resetReserved();
+        mStartOffset = mReq.fileBlock.start + mReq.getDownloadedBytes();
+        mSampleBytes = mReq.getDownloadedBytes();
+        mSampleTime = System.currentTimeMillis();
+        prepareRequest();
+
+        mOutput = mReq.rawRequest.openOutput();
+        // direct, so that the socket reads into it and the file is written from it without copies.
+        mBuffer = mDownloader.bufferPool().acquire(true);
+        mEngine.submit(this);
+    }
+
+    @Override
+    public boolean isAsynchronous() {
+        return true;
+    }
+
+    @Override
+    public void cancel() {
+        mCancelRequested = true;
+        NioEngine.EventLoop loop = mLoop;
+        if (null != loop) {
+            loop.cancel(this);
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mReq.isCancelled();
+    }
+
+    @Override
+    public void failed(Exception e) {
+        closeAll();
+        mReq.failed(e);
+    }
+
+    @Override
+    public String getTaskName() {
+        return "dl-" + mReq.fileBlock.blockIndex + "-" + mReq.rawRequest.downloadFile.getName();
+    }
+
+    void attach(NioEngine.EventLoop loop) {
+        mLoop = loop;
+    }
+
+    void register(Selector selector) {
+        if (mState == STATE_DONE) return;
+        if (mCancelRequested) {
+            abort();
+            return;
+        }
+        if (null == mConnectSpan) {
+            mConnectSpan = Traces.begin(mReq, Tracer.STAGE_CONNECT);
+        }
+        try {
+            mLastActiveTime = System.currentTimeMillis();
+            mChannel = mDownloader.connectionPool().get(mHost, mPort);
+            mReused = null != mChannel;
+            if (mReused) {
+                mConnectedTime = System.nanoTime();
+                mState = STATE_WRITING;
+                mKey = mChannel.register(selector, SelectionKey.OP_WRITE, this);
+                return;
+            }
+
+            mConnectStartTime = System.nanoTime();
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            if (mChannel.connect(mAddress)) {
+                connected();
+                mKey = mChannel.register(selector, SelectionKey.OP_WRITE, this);
+            } else {
+                mState = STATE_CONNECTING;
+                mKey = mChannel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (Exception e) {
+            finish(e);
+        }
+    }
+
+    void onSelected() {
+        try {
+            switch (mState) {
+                case STATE_CONNECTING:
+                    if (mChannel.finishConnect()) {
+                        connected();
+                        mKey.interestOps(SelectionKey.OP_WRITE);
+                    }
+                    break;
+                case STATE_WRITING:
+                    mChannel.write(mRequest);
+                    if (!mRequest.hasRemaining()) {
+                        mState = STATE_READING_HEAD;
+                        mBuffer.clear();
+                        mKey.interestOps(SelectionKey.OP_READ);
+                    }
+                    break;
+                case STATE_READING_HEAD:
+                    readHead();
+                    break;
+                case STATE_READING_BODY:
+                    readBody();
+                    break;
+                default:
+                    break;
+            }
+            mLastActiveTime = System.currentTimeMillis();
+        } catch (IOException e) {
+            boolean nothingRead = mState == STATE_WRITING
+                    || (mState == STATE_READING_HEAD && mBuffer.position() == 0);
+            if (mReused && nothingRead) {
+                // the server may close an idle connection at any time, try a new one.
+                retryWithNewConnection();
+            } else {
+                finish(e);
+            }
+        } catch (Exception e) {
+            finish(e);
+        }
+    }
+
+    private void connected() {
+        mConnectedTime = System.nanoTime();
+        mDownloader.metrics().histogram(Metrics.CONNECT_TIME)
+                .recordNanos(mConnectedTime - mConnectStartTime);
+        mState = STATE_WRITING;
+    }
+
+    private void retryWithNewConnection() {
+        Selector selector = mKey.selector();
+        closeChannel();
+        mRequest.rewind();
+        mBuffer.clear();
+        try {
+            mConnectStartTime = System.nanoTime();
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            mReused = false;
+            if (mChannel.connect(mAddress)) {
+                connected();
+                mKey = mChannel.register(selector, SelectionKey.OP_WRITE, this);
+            } else {
+                mState = STATE_CONNECTING;
+                mKey = mChannel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (Exception e) {
+            finish(e);
+        }
+    }
+
+    long getResumeTime() {
+        return mResumeTime;
+    }
+
+    /**
+     * Called on the loop when the rate limiter allows to read again.
+     */
+    void resume() {
+        if (mState == STATE_DONE || !mKey.isValid()) return;
+        mResumeTime = 0;
+        mLastActiveTime = System.currentTimeMillis();
+        mKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    void checkTimeout(long now) {
+        if (mResumeTime != 0) return; // paused by the rate limiter
+        HttpParameters params = ((HttpSource) mReq.fileBlock.getSource()).parameters;
+        int timeout = mState == STATE_CONNECTING ? params.connectTimeout : params.readTimeout;
+        if (timeout > 0 && now - mLastActiveTime > timeout) {
+            finish(new SocketTimeoutException("Timeout when " + mState + " - " + mUrl));
+        }
+    }
+
+    void abort() {
+        finish(new CancelException("Cancelled when " + "transfer " + mReq));
+    }
+
+    private void prepareRequest() throws IOException, RequestException {
+        long end = mReq.fileBlock.getEnd();
+        if (mStartOffset < 0 || (end > 0 && end < mStartOffset)) {
+            throw new RequestException("Invalid start and end: " + mStartOffset + ", " + end + " - " + mReq);
+        }
+
+        HttpParameters params = ((HttpSource) mReq.fileBlock.getSource()).parameters;
+        mUrl = new URL((null == params.redirectUrl) ? mReq.fileBlock.getSource().url : params.redirectUrl);
+        if (!"http".equalsIgnoreCase(mUrl.getProtocol()))
+            throw new IOException("Only supported http" + " - " + mUrl);
+
+        // resolving blocks, it is done here instead of on the event loop except for redirection.
+        mHost = mUrl.getHost();
+        mPort = mUrl.getPort() < 0 ? HTTP.DEFAULT_PORT : mUrl.getPort();
+        mAddress = new InetSocketAddress(mHost, mPort);
+        if (mAddress.isUnresolved())
+            throw new IOException("Unresolved host" + " - " + mUrl);
+
+        mRequest = new HttpRequestHead(HTTP.GET, mUrl)
+                .addHeaders(params.headers)
+                .range(mStartOffset, end)
+                .encode();
+    }
+
+    private void readHead() throws IOException, CancelException, RequestException, ResponseException {
+        int n = mChannel.read(mBuffer);
+        if (n < 0) throw new IOException("Connection closed before response" + " - " + mUrl);
+        if (n == 0) return;
+
+        mBuffer.flip();
+        HttpResponseHead head = HttpResponseHead.parse(mBuffer);
+        if (null == head) {
+            // a full buffer reads nothing more, which would never time out.
+            if (mBuffer.limit() == mBuffer.capacity())
+                throw new IOException("Response head is larger than " + mBuffer.capacity() + " - " + mUrl);
+            mBuffer.position(mBuffer.limit());
+            mBuffer.limit(mBuffer.capacity());
+            return;
+        }
+
+        if (0 != mConnectedTime) {
+            mDownloader.metrics().histogram(Metrics.FIRST_BYTE_TIME)
+                    .recordNanos(System.nanoTime() - mConnectedTime);
+            mConnectedTime = 0;
+        }
+        mKeepAlive = head.isKeepAlive();
+        if (HTTP.isRedirect(head.code)) {
+            mBodyRemaining = head.getContentLength() - mBuffer.remaining();
+            redirect(head.getLocation(mUrl));
+            return;
+        }
+        if (!HTTP.isSuccessful(head.code))
+            throw new IOException("res code: " + head.code + " - " + mUrl);
+        if (head.isChunked())
+            throw new IOException("Unsupported chunked response" + " - " + mUrl);
+
+        mResumeSupported = head.code == HTTP.HTTP_PARTIAL;
+        if (!mResumeSupported && mStartOffset > 0)
+            throw new IOException("Range is ignored by server, res code: " + head.code + " - " + mUrl);
+
+        mConnectSpan.end(0, false);
+        mConnectSpan = null;
+        mReadSpan = Traces.begin(mReq, Tracer.STAGE_READ);
+        mReadStartBytes = mReq.getDownloadedBytes();
+
+        long len = head.getContentLength();
+        mBodyRemaining = len < 0 ? Long.MAX_VALUE : len;
+        mState = STATE_READING_BODY;
+        if (mBuffer.hasRemaining() || mBodyRemaining <= 0) {
+            writeBody();
+        }
+    }
+
+    private void redirect(String location) throws IOException, CancelException, RequestException {
+        if (null == location) {
+            throw new IOException("Redirection Location is null" + " - " + mUrl);
+        }
+        if (mRedirectTimes >= HTTP.MAX_REDIRECTION) {
+            throw new TryTooMuchException(HTTP.MAX_REDIRECTION, "Max redirection done" + " - " + mUrl);
+        }
+        checkCancelled("redirect " + location);
+
+        ((HttpSource) mReq.fileBlock.getSource()).parameters.redirectUrl = location;
+        mRedirectTimes++;
+        if (null != mDownloader.tracer) {
+            mDownloader.tracer.begin(Tracer.STAGE_REDIRECT, mReq.rawRequest.id, mReq.fileBlock.blockIndex,
+                    HTTP.hostOf(location)).end(0, false);
+        }
+        if (!isSupported(mReq.fileBlock.getSource())) {
+            fallBack();
+            return;
+        }
+        Selector selector = mKey.selector();
+        releaseChannel();
+        prepareRequest();
+        register(selector);
+    }
+
+    /**
+     * The block is redirected to what the engine can not fetch, e.g. https, hand it over to
+     * a blocking task, which is not counted as a retry. Nothing of the body has been read.
+     */
+    private void fallBack() {
+        mState = STATE_DONE;
+        if (null != mConnectSpan) {
+            mConnectSpan.end(0, false);
+            mConnectSpan = null;
+        }
+        final BlockOutput output = releaseOnLoop();
+        mLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                Utils.closeSafely(output);
+                done();
+
+                try {
+                    mDownloader.dispatcher().enqueue(mReq);
+                } catch (RuntimeException e) {
+                    mReq.failed(new RequestException("Rejected when fall back to blocking task " + mReq, e));
+                }
+            }
+        });
+    }
+
+    private void readBody() throws IOException, CancelException {
+        for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+            mBuffer.clear();
+            long max = Math.min(mReq.rawRequest.readLimit(mBuffer.capacity()), mBodyRemaining);
+            mBuffer.limit((int) max);
+
+            int n = mChannel.read(mBuffer);
+            if (n == 0) return;
+            if (n < 0) {
+                finish(null);
+                return;
+            }
+
+            mBuffer.flip();
+            if (!writeBody()) return;
+
+            long wait = mReq.rawRequest.throttle(n);
+            if (wait > 0) {
+                // stop reading until the limiter allows, the loop resumes it.
+                mKey.interestOps(0);
+                mResumeTime = System.nanoTime() + wait;
+                mLoop.pause(this);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write bytes between position and limit of the buffer.
+     * @return false if the transfer is over.
+     */
+    private boolean writeBody() throws IOException, CancelException {
+        if (mReq.isCancelled()) {
+            throw new CancelException("Cancelled when " + "write io" + mReq);
+        }
+        IOException syncError = mSyncError;
+        if (null != syncError) throw syncError;
+
+        int read = mBuffer.remaining();
+        int len = mReq.reserve(read);
+        if (len > 0) {
+            mBuffer.limit(mBuffer.position() + len);
+            mOutput.write(mBuffer, mReq.fileBlock.start + mReq.getDownloadedBytes());
+
+            mBodyRemaining -= len;
+            mReq.setDownloadedBytes(mReq.getDownloadedBytes() + len);
+            if (needSync()) {
+                syncLater();
+                sampleThroughput();
+                mLastSyncBytes = mReq.getDownloadedBytes();
+                mLastSyncTime = System.currentTimeMillis();
+            }
+        }
+
+        // less than read if the tail of this block has been stolen.
+        if (len < read || mBodyRemaining <= 0 || mReq.isFileBlockCompleted()) {
+            finish(null);
+            return false;
+        }
+        if (mReq.retiring && retire()) return false;
+        return true;
+    }
+
+    /**
+     * Give the rest of the block back to the request, the connection controller wants
+     * fewer connections.
+     * @return false if the block goes on
+     */
+    private boolean retire() {
+        if (!mReq.rawRequest.park(mReq)) return false;
+
+        mState = STATE_DONE;
+        sampleThroughput();
+        if (null != mReadSpan) {
+            mReadSpan.end(mReq.getDownloadedBytes() - mReadStartBytes, false);
+            mReadSpan = null;
+        }
+        final BlockOutput output = releaseOnLoop();
+        mLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync(output, false);
+                } catch (IOException e) {
+                    // the next task of the block saves its progress again.
+                }
+                Utils.closeSafely(output);
+                done();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Complete the transfer on the event loop, the last sync and the reports are done
+     * on the worker of the loop.
+     * @param error null if all bytes are read
+     */
+    private void finish(Exception error) {
+        if (mState == STATE_DONE) return;
+        mState = STATE_DONE;
+
+        if (null == error) {
+            sampleThroughput();
+        } else if (isCancelled() && !(error instanceof CancelException)) {
+            error = new CancelException("Cancelled when " + error);
+        }
+        if (null != mConnectSpan) {
+            mConnectSpan.end(0, true);
+            mConnectSpan = null;
+        }
+        if (null != mReadSpan) {
+            mReadSpan.end(mReq.getDownloadedBytes() - mReadStartBytes, null != error);
+            mReadSpan = null;
+        }
+        final BlockOutput output = releaseOnLoop();
+        final Exception result = error;
+        mLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                completed(output, result);
+            }
+        });
+    }
+
+    /**
+     * Called on the worker of the loop after the periodic syncs posted before.
+     */
+    private void completed(BlockOutput output, Exception error) {
+        if (null == error || error instanceof CancelException) {
+            try {
+                sync(output, false);
+            } catch (IOException e) {
+                if (null == error) error = e;
+            }
+        }
+        Utils.closeSafely(output);
+        done();
+
+        if (null != error) {
+            mReq.failed(error);
+        } else if (mReq.isFileBlockCompleted()) {
+            if (mResumeSupported) {
+                mDownloader.dispatcher().stealTail(mReq);
+            }
+            mReq.finished();
+        } else {
+            mReq.failed(new ChecksumException("Unknown io err"));
+        }
+    }
+
+    /**
+     * Feed the speed since last sample to the mirror selector.
+     */
+    private void sampleThroughput() {
+        long bytes = mReq.getDownloadedBytes();
+        long now = System.currentTimeMillis();
+        mReq.rawRequest.mirrors().record(mReq.fileBlock.getSource(), bytes - mSampleBytes, now - mSampleTime);
+        mSampleBytes = bytes;
+        mSampleTime = now;
+    }
+
+    private boolean needSync() {
+        long bytesDelta = mReq.getDownloadedBytes() - mLastSyncBytes;
+        long timeDelta = System.currentTimeMillis() - mLastSyncTime;
+        return mLastSyncTime < 0 || (bytesDelta > MIN_BYTES_FOR_SYNC && timeDelta > TIME_GAP_FOR_SYNC);
+    }
+
+    /**
+     * Sync on the worker of the loop, a failure is thrown by the next write.
+     */
+    private void syncLater() {
+        final BlockOutput output = mOutput;
+        mLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync(output, true);
+                } catch (IOException e) {
+                    mSyncError = e;
+                }
+            }
+        });
+    }
+
+    /**
+     * @param periodic false for the last sync of this attempt
+     */
+    private void sync(BlockOutput output, boolean periodic) throws IOException {
+        if (null == output) return;
+        mDownloader.dispatcher().sync(mReq, output, mResumeSupported && !mReq.isHedge(), periodic);
+    }
+
+    private void checkCancelled(String message) throws CancelException {
+        if (mReq.isCancelled()) {
+            throw new CancelException("Cancelled when " + message);
+        }
+    }
+
+    /**
+     * Put the connection back to pool if the whole response has been read, otherwise close it.
+     */
+    private void releaseChannel() {
+        if (null != mChannel && null != mKey && mKeepAlive && mBodyRemaining == 0) {
+            mKey.cancel();
+            mKey = null;
+            mLoop.release(mHost, mPort, mChannel);
+            mChannel = null;
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (null != mKey) {
+            mKey.cancel();
+            mKey = null;
+        }
+        Utils.closeSafely(mChannel);
+        mChannel = null;
+    }
+
+    /**
+     * Release the connection and buffer on the loop.
+     * @return the output, which is closed on the worker after the syncs posted before.
+     */
+    private BlockOutput releaseOnLoop() {
+        releaseChannel();
+        mDownloader.bufferPool().release(mBuffer);
+        mBuffer = null;
+        BlockOutput output = mOutput;
+        mOutput = null;
+        return output;
+    }
+
+    private void closeAll() {
+        closeChannel();
+        Utils.closeSafely(mOutput);
+        mOutput = null;
+        mDownloader.bufferPool().release(mBuffer);
+        mBuffer = null;
+    }
+}
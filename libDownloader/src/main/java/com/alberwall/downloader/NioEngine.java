@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import com.alberwall.downloader.http.ConnectionPool;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multiplexes block transfers of {@link NioBlockTask} over a few event loop threads.
+ * Each loop has a worker thread for what may block, syncs of the file and database and the
+ * reports of finished blocks, so that the loop only moves bytes.
+ */
+final class NioEngine {
+    private static final long SELECT_TIMEOUT = 1000;
+    private static final long WORKER_KEEP_ALIVE = 10_000; // ms
+
+    private final EventLoop[] mLoops;
+    private final AtomicInteger mNext = new AtomicInteger(0);
+
+    NioEngine(int threadCount, ConnectionPool pool) throws IOException {
+        mLoops = new EventLoop[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mLoops[i] = new EventLoop("aw-nio-" + i, pool);
+        }
+        for (EventLoop loop : mLoops) {
+            loop.start();
+        }
+    }
+
+    void submit(NioBlockTask task) {
+        int i = (mNext.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length;
+        mLoops[i].submit(task);
+    }
+
+    void shutdown() {
+        for (EventLoop loop : mLoops) {
+            loop.shutdown();
+        }
+    }
+
+    static final class EventLoop extends Thread {
+        private final Selector mSelector;
+        private final ConnectionPool mPool;
+        private final List<IdleChannel> mReleases = new ArrayList<>();
+        private final Queue<NioBlockTask> mRegisters = new ConcurrentLinkedQueue<>();
+        private final Queue<NioBlockTask> mCancels = new ConcurrentLinkedQueue<>();
+        private final List<NioBlockTask> mPaused = new ArrayList<>();
+        private final ThreadPoolExecutor mWorker;
+        private volatile boolean mShutdown = false;
+
+        EventLoop(final String name, ConnectionPool pool) throws IOException {
+            super(name);
+            setDaemon(true);
+            mSelector = Selector.open();
+            mPool = pool;
+            mWorker = new ThreadPoolExecutor(1, 1,
+                    WORKER_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, name + "-worker");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            mWorker.allowCoreThreadTimeOut(true);
+        }
+
+        void submit(NioBlockTask task) {
+            task.attach(this);
+            mRegisters.offer(task);
+            mSelector.wakeup();
+            // the loop has stopped and drained the queue for the last time, fail the task here.
+            if (mShutdown && mRegisters.remove(task)) {
+                task.abort();
+            }
+        }
+
+        void cancel(NioBlockTask task) {
+            mCancels.offer(task);
+            mSelector.wakeup();
+        }
+
+        void shutdown() {
+            mShutdown = true;
+            mSelector.wakeup();
+        }
+
+        /**
+         * Called on this loop, the channel goes back to pool after its cancelled key
+         * is flushed by the next select, so that it can be registered again.
+         */
+        void release(String host, int port, SocketChannel channel) {
+            mReleases.add(new IdleChannel(host, port, channel));
+        }
+
+        /**
+         * Run the work on the worker of this loop, in the order posted. Once the loop
+         * has stopped, it is run by the caller.
+         */
+        void post(Runnable work) {
+            try {
+                mWorker.execute(work);
+            } catch (RejectedExecutionException e) {
+                work.run();
+            }
+        }
+
+        /**
+         * Called on this loop, the task is resumed at its resume time.
+         */
+        void pause(NioBlockTask task) {
+            mPaused.add(task);
+        }
+
+        @Override
+        public void run() {
+            long lastCheckTime = System.currentTimeMillis();
+            try {
+                while (!mShutdown) {
+                    mSelector.select(mReleases.isEmpty() ? selectTimeout() : 1);
+                    for (IdleChannel idle : mReleases) {
+                        mPool.put(idle.host, idle.port, idle.channel);
+                    }
+                    mReleases.clear();
+
+                    NioBlockTask task;
+                    while (null != (task = mRegisters.poll())) {
+                        task.register(mSelector);
+                    }
+                    while (null != (task = mCancels.poll())) {
+                        task.abort();
+                    }
+
+                    Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid()) {
+                            ((NioBlockTask) key.attachment()).onSelected();
+                        }
+                    }
+
+                    resumePaused();
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastCheckTime >= SELECT_TIMEOUT) {
+                        lastCheckTime = now;
+                        for (NioBlockTask t : attachedTasks()) {
+                            t.checkTimeout(now);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                e.printStackTrace();
+            } finally {
+                mShutdown = true;
+                for (NioBlockTask t : attachedTasks()) {
+                    t.abort();
+                }
+                NioBlockTask task;
+                while (null != (task = mRegisters.poll())) {
+                    task.abort();
+                }
+                for (IdleChannel idle : mReleases) {
+                    Utils.closeSafely(idle.channel);
+                }
+                // what has been posted is still done.
+                mWorker.shutdown();
+                try {
+                    mSelector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        private long selectTimeout() {
+            long timeout = SELECT_TIMEOUT;
+            long now = System.nanoTime();
+            for (NioBlockTask t : mPaused) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(t.getResumeTime() - now);
+                timeout = Math.min(timeout, Math.max(1, wait));
+            }
+            return timeout;
+        }
+
+        private void resumePaused() {
+            if (mPaused.isEmpty()) return;
+            long now = System.nanoTime();
+            Iterator<NioBlockTask> it = mPaused.iterator();
+            while (it.hasNext()) {
+                NioBlockTask t = it.next();
+                if (t.getResumeTime() - now <= 0) {
+                    it.remove();
+                    t.resume();
+                }
+            }
+        }
+
+        private List<NioBlockTask> attachedTasks() {
+            List<NioBlockTask> tasks = new ArrayList<>(mSelector.keys().size());
+            for (SelectionKey key : mSelector.keys()) {
+                if (key.isValid()) {
+                    tasks.add((NioBlockTask) key.attachment());
+                }
+            }
+            return tasks;
+        }
+    }
+
+    private static final class IdleChannel {
+        final String host;
+        final int port;
+        final SocketChannel channel;
+
+        IdleChannel(String host, int port, SocketChannel channel) {
+            this.host = host;
+            this.port = port;
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+/**
+ * A download listener which also receives the speed and the estimated time left.
+ */
+public interface OnDownloadSpeedListener extends OnDownloadListener {
+
+    /**
+     * Called instead of {@link #onProgress(long, long)}.
+     * @param bytesPerSecond smoothed speed, 0 until it is known
+     * @param etaMillis estimated time left, -1 until it is known
+     */
+    void onProgress(long downloadedBytes, long totalBytes, long bytesPerSecond, long etaMillis);
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import com.alberwall.downloader.exceptions.RequestException;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs at most permits tasks at a time on a backend which starts a thread per task,
+ * queued tasks are handed a permit in priority order.
+ * The backend is shut down once the tasks queued before {@link #shutdown()} are handed over.
+ * Only comparable tasks such as {@link TaskRunnable} are accepted, the queue orders them.
+ */
+final class PermitExecutor extends AbstractExecutorService {
+    private final ExecutorService mBackend;
+    private final Semaphore mPermits;
+    private final PriorityBlockingQueue<Runnable> mQueue = new PriorityBlockingQueue<>();
+    // tasks accepted but not handed to the backend yet
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile boolean mShutdown = false;
+
+    PermitExecutor(ExecutorService backend, int permits) {
+        mBackend = backend;
+        mPermits = new Semaphore(permits);
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or null if the jvm does not support.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!(command instanceof Comparable))
+            throw new RejectedExecutionException("Task is not comparable: " + command);
+        synchronized (this) {
+            if (mShutdown)
+                throw new RejectedExecutionException("Executor has been shutdown");
+            mPending.incrementAndGet();
+            mQueue.offer(command);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        // The queue is offered before acquiring and a permit is released before polling,
+        // so a queued task always meets a permit either here or when a running task ends.
+        while (!mQueue.isEmpty() && mPermits.tryAcquire()) {
+            final Runnable r = mQueue.poll();
+            if (null == r) {
+                mPermits.release();
+                continue;
+            }
+
+            try {
+                mBackend.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            mPermits.release();
+                            schedule();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the caller of this round may be another task, fail the rejected one instead.
+                mPermits.release();
+                rejected(r);
+            } finally {
+                mPending.decrementAndGet();
+            }
+        }
+
+        if (mShutdown) {
+            tryTerminate();
+        }
+    }
+
+    private static void rejected(Runnable r) {
+        if (!(r instanceof TaskRunnable)) return;
+        Task t = ((TaskRunnable) r).getRealTask();
+        if (null != t) {
+            t.failed(new RequestException("Rejected when schedule " + t.getTaskName()));
+            t.done();
+        }
+    }
+
+    /**
+     * Shut the backend down if no accepted task is waiting to be handed over,
+     * the running ones are finished by the backend.
+     */
+    private synchronized void tryTerminate() {
+        if (mPending.get() == 0 && !mBackend.isShutdown()) {
+            mBackend.shutdown();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+        }
+        schedule();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        synchronized (this) {
+            mShutdown = true;
+        }
+        List<Runnable> tasks = new ArrayList<>();
+        mPending.addAndGet(-mQueue.drainTo(tasks));
+        tasks.addAll(mBackend.shutdownNow());
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return mShutdown && mPending.get() == 0 && mBackend.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mBackend.awaitTermination(timeout, unit);
+    }
+}
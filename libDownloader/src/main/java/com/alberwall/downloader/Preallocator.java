@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import com.alberwall.downloader.exceptions.CancelException;
+import com.alberwall.downloader.exceptions.InsufficientSpaceException;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reserves the disk space of a temp file before the blocks are written into it, so that the
+ * file is not extended piece by piece from several threads.
+ */
+final class Preallocator {
+    private static final int ZERO_CHUNK = 1 << 20;
+
+    private static volatile Method sFallocate;
+    private static volatile boolean sFallocateResolved = false;
+
+    private Preallocator() {
+    }
+
+    /**
+     * Fail fast if the disk can not hold the rest of the file. The bytes not downloaded yet
+     * are counted rather than the length of the temp file, which may be sparse.
+     */
+    static void checkSpace(DownloadRequest req) throws InsufficientSpaceException {
+        long required = req.totalLength - req.getDownloadedBytes();
+        if (required <= 0) return;
+
+        File dir = req.tmpFile.getAbsoluteFile().getParentFile();
+        long available = null == dir ? 0 : dir.getUsableSpace();
+        if (available > 0 && available < required) { // 0 if unknown
+            throw new InsufficientSpaceException(req.tmpFile.getPath(), required, available);
+        }
+    }
+
+    static void preallocate(DownloadRequest req, int strategy) throws IOException, CancelException {
+        if (strategy == AwDownloader.PREALLOCATE_NONE || req.totalLength <= 0) return;
+
+        RandomAccessFile file = new RandomAccessFile(req.tmpFile, "rw");
+        try {
+            switch (strategy) {
+                case AwDownloader.PREALLOCATE_SET_LENGTH:
+                    if (file.length() < req.totalLength) {
+                        file.setLength(req.totalLength);
+                    }
+                    break;
+                case AwDownloader.PREALLOCATE_NATIVE:
+                    // zero-fill allocates the blocks as well.
+                    if (!fallocate(file.getFD(), req.totalLength)) {
+                        zeroFill(req, file.getChannel());
+                    }
+                    break;
+                case AwDownloader.PREALLOCATE_ZERO_FILL:
+                    zeroFill(req, file.getChannel());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown preallocation: " + strategy);
+            }
+        } finally {
+            Utils.closeSafely(file);
+        }
+    }
+
+    /**
+     * Write zeros after the current end of file, the bytes of a resumed file are kept.
+     */
+    private static void zeroFill(DownloadRequest req, FileChannel channel)
+            throws IOException, CancelException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(ZERO_CHUNK);
+        long pos = channel.size();
+        while (pos < req.totalLength) {
+            if (req.isCancelled()) {
+                throw new CancelException("Cancelled when preallocate " + req.tmpFile);
+            }
+            zeros.clear();
+            zeros.limit((int) Math.min(ZERO_CHUNK, req.totalLength - pos));
+            while (zeros.hasRemaining()) {
+                pos += channel.write(zeros, pos);
+            }
+        }
+    }
+
+    /**
+     * posix_fallocate of android.system.Os (API 21).
+     * @return false if it is not available
+     */
+    private static boolean fallocate(FileDescriptor fd, long length) throws IOException {
+        Method method = resolveFallocate();
+        if (null == method) return false;
+
+        try {
+            method.invoke(null, fd, 0L, length);
+            return true;
+        } catch (InvocationTargetException e) {
+            // ErrnoException, e.g. ENOSPC, or EOPNOTSUPP of the file system.
+            Throwable cause = e.getCause();
+            if (null != cause && String.valueOf(cause.getMessage()).contains("EOPNOTSUPP")) {
+                return false;
+            }
+            throw new IOException("posix_fallocate failed: " + cause, cause);
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+    }
+
+    private static Method resolveFallocate() {
+        if (!sFallocateResolved) {
+            try {
+                Class<?> os = Class.forName("android.system.Os");
+                sFallocate = os.getMethod("posix_fallocate", FileDescriptor.class, long.class, long.class);
+            } catch (Exception e) {
+                sFallocate = null;
+            }
+            sFallocateResolved = true;
+        }
+        return sFallocate;
+    }
+}
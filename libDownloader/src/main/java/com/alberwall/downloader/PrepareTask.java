@@ -19,6 +19,7 @@ package com.alberwall.downloader;
 import com.alberwall.downloader.exceptions.CancelException;
 import com.alberwall.downloader.exceptions.RequestException;
 import com.alberwall.downloader.exceptions.ResponseException;
+import com.alberwall.downloader.trace.Tracer;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -27,6 +28,7 @@ import java.util.List;
 
 class PrepareTask extends Task<DownloadRequest> {
     private volatile DownloadClient mClient;
+    private DownloadClient mProbe; // connected by the length probe, not handed over yet.
 
     PrepareTask(DownloadRequest req, AwDownloader dl) {
         super(req, dl);
@@ -40,18 +42,68 @@ class PrepareTask extends Task<DownloadRequest> {
             throw new RequestException("Download file exists: " + mReq.downloadFile);
         }
 
-        Source source = mReq.source[0];
-        checkCancelled("query file length for " + source);
+        // query from the mirrors in order until one answers.
+        Source source = null;
+        long fileLength = -1;
+        for (int i = 0; null == source; i++) {
+            Source s = mReq.source[i];
+            checkCancelled("query file length for " + s);
 
-        if (null == mClient) {
-            mClient = DownloadClientFactory.createClient(source);
+            mClient = DownloadClientFactory.createClient(mDownloader, s, mReq.id, -1);
+            Tracer.Span span = Traces.begin(mDownloader, Tracer.STAGE_PROBE, mReq.id, -1, s);
+            try {
+                fileLength = queryFileLength(s);
+                source = s;
+            } catch (IOException | ResponseException e) {
+                if (i == mReq.source.length - 1 || isCancelled()) throw e;
+            } finally {
+                span.end(Math.max(0, fileLength), null == source);
+            }
+        }
+
+        try {
+            prepare(source, fileLength);
+        } finally {
+            if (null != mProbe) {
+                Utils.disconnectSafely(mProbe);
+                mProbe = null;
+            }
+        }
+    }
+
+    private long queryFileLength(Source source)
+            throws RequestException, ResponseException, IOException, CancelException {
+        long fileLength;
+        boolean ranged = mDownloader.probeWithRangedGet
+                && ForwardingClient.isRangeProbeSupported(mClient);
+        if (ranged) {
+            //noinspection unchecked
+            mClient.connect(source, 0, -1);
+            try {
+                fileLength = ((RangeProbeClient) mClient).getTotalLength();
+            } catch (ResponseException e) {
+                Utils.disconnectSafely(mClient);
+                throw e;
+            }
+        } else {
+            //noinspection unchecked
+            fileLength = mClient.queryFileLength(source);
         }
-        //noinspection unchecked
-        long fileLength = mClient.queryFileLength(source);
+
         if (fileLength <= 0) {
+            if (ranged) {
+                Utils.disconnectSafely(mClient);
+            }
             throw new ResponseException("Invalid file length(" + fileLength + ") - " + source.url);
         }
+        if (ranged) {
+            mProbe = mClient;
+        }
+        return fileLength;
+    }
 
+    private void prepare(Source source, long fileLength)
+            throws RequestException, ResponseException, IOException, CancelException {
         DownloadRequest existedReq = mDownloader.database().queryIfContainsIn(Arrays.asList(mReq.urls()));
         if (null != existedReq && null != existedReq.tmpFile && existedReq.tmpFile.exists()) {
             if (fileLength != existedReq.totalLength || (!mClient.isResumeSupported())) {
@@ -63,6 +115,10 @@ class PrepareTask extends Task<DownloadRequest> {
 
                 List<FileBlockRequest> blockRequests = new ArrayList<>(existedReq.blockRequests.size());
                 for (FileBlockRequest br : existedReq.blockRequests) {
+                    Source s = mReq.getSourceBy(br.fileBlock.getSource().url);
+                    if (null != s) {
+                        br.fileBlock.setSource(s);
+                    }
                     FileBlockRequest bkReq = new FileBlockRequest(mReq, br.fileBlock, br.getDownloadedBytes());
                     blockRequests.add(bkReq);
                 }
@@ -70,40 +126,84 @@ class PrepareTask extends Task<DownloadRequest> {
             }
         }
         mReq.totalLength = fileLength;
+        mReq.resumeSupported = mClient.isResumeSupported();
+        mReq.preparedTime = System.currentTimeMillis();
 
         // create tmpfile。
         if (!mReq.tmpFile.exists()) {
             if (mReq.tmpFile.getParentFile() != null && !mReq.tmpFile.getParentFile().exists()) {
                 //noinspection ResultOfMethodCallIgnored
                 mReq.tmpFile.getParentFile().mkdirs();
-            } else {
-                //noinspection ResultOfMethodCallIgnored
-                mReq.tmpFile.createNewFile();
             }
+            //noinspection ResultOfMethodCallIgnored
+            mReq.tmpFile.createNewFile();
+        }
+        if (fileLength > 0) {
+            Preallocator.checkSpace(mReq);
+            Preallocator.preallocate(mReq, mDownloader.preallocation);
         }
 
+        if (mDownloader.adaptiveConnections && mReq.resumeSupported) {
+            mReq.setController(new ConnectionController(
+                    AwDownloader.INITIAL_CONNECTIONS, mDownloader.maxFileBlockCnt));
+        }
         if (mReq.blockRequests.isEmpty()) {
             List<FileBlockRequest> blockRequests = createBlockRequests(
-                    determineBlockCount(mClient.isResumeSupported())
+                    determineBlockCount(mReq.resumeSupported)
             );
 
             mReq.setFileBlockRequests(blockRequests);
         }
         mDownloader.database().addOrUpdateDownloadRequest(mReq);
 
-        mReq.setState(DownloadRequest.STATE_DOWNLOAD_QUEUE);
+        // hold the prepare slot until a block starts, so prepare runs only a few requests ahead.
+        mReq.enterDownloadQueue(new Runnable() {
+            @Override
+            public void run() {
+                done();
+            }
+        });
+        int enqueued = 0;
         for (FileBlockRequest blockReq : mReq.blockRequests) {
-            checkCancelled("put block request: " + blockReq.fileBlock.source);
+            checkCancelled("put block request: " + blockReq.fileBlock.getSource());
             if (blockReq.isFileBlockCompleted()) continue;
 
             try {
-                mDownloader.dispatcher().enqueue(blockReq);
+                if (null != mProbe && blockReq.fileBlock.start + blockReq.getDownloadedBytes() == 0) {
+                    // the probe response begins at 0, it is the stream of this block.
+                    blockReq.fileBlock.setSource(source);
+                    if (mDownloader.dispatcher().tryEnqueue(blockReq, mProbe)) {
+                        mProbe = null;
+                        mClient = null;
+                    } else {
+                        // waiting with the probe open would go over the limit of the host.
+                        Utils.disconnectSafely(mProbe);
+                        mProbe = null;
+                        mDownloader.dispatcher().enqueue(blockReq);
+                    }
+                } else {
+                    mDownloader.dispatcher().enqueue(blockReq);
+                }
+                enqueued++;
             } catch (Exception e) {
                 if (!isCancelled()) {
                     throw new RequestException("Error when enqueue " + blockReq, e);
                 }
             }
         }
+        if (0 == enqueued) {
+            // no block will take the request out of the download queue, give the slot back,
+            // and complete it here if every block has been downloaded before.
+            done();
+            if (mReq.isAllBlockCompleted()) {
+                mDownloader.dispatcher().finished(mReq);
+            }
+        }
+    }
+
+    @Override
+    public boolean isAsynchronous() {
+        return true;
     }
 
     @Override
@@ -140,6 +240,9 @@ class PrepareTask extends Task<DownloadRequest> {
         long minBlockSize = mDownloader.minFileBlockSize;
         if (mReq.totalLength < minBlockSize) return 1;
 
+        if (null != mReq.controller()) {
+            return mReq.controller().getTarget();
+        }
         return mDownloader.nThreadsOfRequest;
     }
 
@@ -156,7 +259,7 @@ class PrepareTask extends Task<DownloadRequest> {
                 end = offset + mReq.blockSize - 1;
             }
 
-            FileBlock block = new FileBlock(mReq.source[0], i, offset, end);
+            FileBlock block = new FileBlock(mReq.mirrors().next(), i, offset, end);
             FileBlockRequest blockRequest = new FileBlockRequest(mReq, block);
             blockRequest.setListener(mReq.getInnerListener());
             blockRequests.add(blockRequest);
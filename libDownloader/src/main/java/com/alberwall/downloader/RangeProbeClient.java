@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import com.alberwall.downloader.exceptions.ResponseException;
+
+/**
+ * A client which also tells the file length from the response of a connect, which
+ * {@link AwDownloader.Builder#probeWithRangedGet(boolean)} needs. Other clients are
+ * probed with {@link #queryFileLength(Source)}.
+ */
+public interface RangeProbeClient<P extends ProtocolParameters> extends DownloadClient<P> {
+
+    /**
+     * query length of file in remote server from the response of last connect,
+     * so that the length is known without a separate query.
+     * @return the file length
+     */
+    long getTotalLength() throws ResponseException;
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket on the theoretical arrival time (GCRA), a read is charged with a single CAS,
+ * the rate can be changed at any time.
+ */
+public final class RateLimiter {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long BURST = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private volatile long mBytesPerSecond;
+    private final AtomicLong mArrivalTime = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param bytesPerSecond 0 for unlimited
+     */
+    public RateLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * @param bytesPerSecond 0 for unlimited
+     */
+    public void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Invalid rate: " + bytesPerSecond);
+        mBytesPerSecond = bytesPerSecond;
+        mArrivalTime.set(System.nanoTime()); // forget the debt of the old rate.
+    }
+
+    public long getRate() {
+        return mBytesPerSecond;
+    }
+
+    public boolean isLimited() {
+        return mBytesPerSecond > 0;
+    }
+
+    /**
+     * Charge the bytes which have been read.
+     * @return nanoseconds to wait before reading more, 0 if no need.
+     */
+    long acquire(long bytes) {
+        long rate = mBytesPerSecond;
+        if (rate <= 0 || bytes <= 0) return 0;
+
+        long cost = bytes * NANOS_PER_SECOND / rate;
+        long now = System.nanoTime();
+        while (true) {
+            long arrival = mArrivalTime.get();
+            long next = Math.max(arrival, now) + cost;
+            if (mArrivalTime.compareAndSet(arrival, next)) {
+                return Math.max(0, next - BURST - now);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+/**
+ * Speed of a request or a block smoothed by an exponentially weighted moving average,
+ * sampled at most every SAMPLE ms by whichever thread sees the progress, so that one
+ * slow or fast read does not swing it and it still follows a change in a few seconds.
+ */
+final class SpeedEstimator {
+    private static final long SAMPLE = 500; // ms
+    private static final double WINDOW = 3000; // ms, a sample this old weighs 1/e
+
+    private volatile long mSampleTime = 0;
+    private volatile double mRate = -1; // bytes per second, -1 until the first sample
+
+    // guarded by this
+    private long mSampleBytes;
+
+    boolean isDue(long now) {
+        return now - mSampleTime >= SAMPLE;
+    }
+
+    /**
+     * @param bytes downloaded so far
+     */
+    void sample(long now, long bytes) {
+        synchronized (this) {
+            long elapsed = now - mSampleTime;
+            if (elapsed < SAMPLE) return;
+            if (0 != mSampleTime) {
+                double instant = (bytes - mSampleBytes) * 1000.0 / elapsed;
+                double rate = mRate;
+                mRate = rate < 0 ? instant : rate + (1 - Math.exp(-elapsed / WINDOW)) * (instant - rate);
+            }
+            mSampleTime = now;
+            mSampleBytes = bytes;
+        }
+    }
+
+    /**
+     * Start over, e.g. for a new attempt which may be from another mirror.
+     */
+    synchronized void reset() {
+        mSampleTime = 0;
+        mRate = -1;
+    }
+
+    /**
+     * @return bytes per second, -1 if unknown
+     */
+    double getRate() {
+        return mRate;
+    }
+
+    /**
+     * @return ms to download remaining bytes at the current speed, -1 if unknown
+     */
+    long eta(long remaining) {
+        if (remaining <= 0) return 0;
+        double rate = mRate;
+        if (rate <= 0) return -1;
+        return (long) (remaining * 1000 / rate);
+    }
+}
@@ -21,11 +21,13 @@ import com.alberwall.downloader.exceptions.RequestException;
 import com.alberwall.downloader.exceptions.ResponseException;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class Task<Request extends Comparable<Request>> {
 
     protected final Request mReq;
     protected final AwDownloader mDownloader;
+    private final AtomicReference<Runnable> mDoneHook = new AtomicReference<>();
 
     public Task(Request req, AwDownloader dl) {
         mReq = req;
@@ -36,6 +38,14 @@ public abstract class Task<Request extends Comparable<Request>> {
             throws RequestException, ResponseException, IOException, CancelException;
 
 
+    /**
+     * @return true if the task goes on after {@link #execute()} returns, it has to
+     * report finished or failed by itself.
+     */
+    public boolean isAsynchronous() {
+        return false;
+    }
+
     public abstract void cancel();
 
     public abstract boolean isCancelled();
@@ -44,6 +54,21 @@ public abstract class Task<Request extends Comparable<Request>> {
 
     public abstract String getTaskName();
 
+    void setDoneHook(Runnable hook) {
+        mDoneHook.set(hook);
+    }
+
+    /**
+     * Called once the task is over, by {@link TaskRunnable} for a synchronous task, by the
+     * task itself for an asynchronous one when it reports finished or failed.
+     */
+    final void done() {
+        Runnable hook = mDoneHook.getAndSet(null);
+        if (null != hook) {
+            hook.run();
+        }
+    }
+
     public Request getRequest() {
         return mReq;
     }
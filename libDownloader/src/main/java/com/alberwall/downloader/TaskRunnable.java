@@ -36,16 +36,31 @@ class TaskRunnable implements Runnable, Comparable<TaskRunnable> {
             e.printStackTrace();
         }
 
+        boolean async = false;
         try {
             if (null != task) {
                 try {
                     task.execute();
+                    async = task.isAsynchronous();
                 } catch (Exception e) {
                     task.failed(e);
                 }
             }
         } finally {
-            realTask = null;
+            // keep an asynchronous task to be cancelled later
+            if (!async) {
+                realTask = null;
+                if (null != task) {
+                    task.done();
+                }
+            }
+        }
+    }
+
+    void setDoneHook(Runnable hook) {
+        Task t = realTask;
+        if (null != t) {
+            t.setDoneHook(hook);
         }
     }
 
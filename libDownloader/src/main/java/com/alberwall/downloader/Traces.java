@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import com.alberwall.downloader.trace.Tracer;
+
+/**
+ * Begins spans on the tracer of a downloader, or nothing if there is no tracer.
+ */
+final class Traces {
+    static final Tracer.Span NONE = new Tracer.Span() {
+        @Override
+        public void end(long bytes, boolean failed) {
+        }
+    };
+
+    private Traces() {
+    }
+
+    static Tracer.Span begin(AwDownloader downloader, String stage, long requestId, int blockIndex,
+                             Source source) {
+        Tracer tracer = downloader.tracer;
+        if (null == tracer) return NONE;
+        return tracer.begin(stage, requestId, blockIndex, null == source ? null : Dispatcher.hostOf(source));
+    }
+
+    static Tracer.Span begin(FileBlockRequest req, String stage) {
+        return begin(req.rawRequest.downloader(), stage, req.rawRequest.id, req.fileBlock.blockIndex,
+                req.fileBlock.getSource());
+    }
+
+    /**
+     * Trace a stage which is a point in time.
+     */
+    static void mark(FileBlockRequest req, String stage, long bytes) {
+        if (null == req.rawRequest.downloader().tracer) return;
+        begin(req, stage).end(bytes, false);
+    }
+}
@@ -46,6 +46,18 @@ public class Utils {
         }
     }
 
+    /**
+     * Drop the response of a connected client without reading the rest of body.
+     */
+    static void disconnectSafely(DownloadClient client) {
+        if (null != client) {
+            try {
+                closeSafely(client.getInputStream());
+            } catch (IOException e) {
+            }
+        }
+    }
+
     private void closeSafely(RandomAccessFile outputFile) {
         if (null != outputFile) {
             try {
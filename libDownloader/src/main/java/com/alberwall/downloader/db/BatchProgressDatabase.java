@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader.db;
+
+import com.alberwall.downloader.FileBlockRequest;
+
+import java.util.List;
+
+/**
+ * A database which saves the progress of several blocks at once. The group commit of
+ * {@link com.alberwall.downloader.AwDownloader#DURABILITY_GROUP_COMMIT} uses it if the database
+ * implements it, otherwise the blocks are saved one by one.
+ */
+public interface BatchProgressDatabase extends DownloadDatabase {
+
+    /**
+     * Save the progress of several blocks at once, in one transaction if possible.
+     * @param downloadedBytes of each block in reqs
+     */
+    void updateFileBlockProgress(List<FileBlockRequest> reqs, long[] downloadedBytes, long currentTime);
+}
@@ -23,7 +23,7 @@ import com.alberwall.downloader.FileBlockRequest;
 import java.util.ArrayList;
 import java.util.List;
 
-public class NoDatabase implements DownloadDatabase {
+public class NoDatabase implements BatchProgressDatabase {
     @Override
     public void init(AwDownloader downloader) {
         // No-op
@@ -58,4 +58,9 @@ public class NoDatabase implements DownloadDatabase {
     public void updateFileBlockProgress(FileBlockRequest req, long downloadedBytes, long currentTime) {
         // No-op
     }
+
+    @Override
+    public void updateFileBlockProgress(List<FileBlockRequest> reqs, long[] downloadedBytes, long currentTime) {
+        // No-op
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader.exceptions;
+
+import java.io.IOException;
+
+public class InsufficientSpaceException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private long required;
+    private long available;
+
+    public InsufficientSpaceException(String path, long required, long available) {
+        super("Not enough space for " + path);
+        this.required = required;
+        this.available = available;
+    }
+
+    public long getRequired() {
+        return required;
+    }
+
+    public long getAvailable() {
+        return available;
+    }
+
+    @Override
+    public String toString() {
+        return getMessage() + ": required " + required + " bytes, available " + available;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive connections of plain http shared by prepare and block tasks of all requests,
+ * idle connections are kept per host and evicted after keepAliveDuration.
+ * Only idle connections are limited here, connections in use are not counted.
+ */
+public class ConnectionPool {
+    private final int mMaxIdlePerHost;
+    private final long mKeepAliveDuration;
+    private final Map<String, Deque<IdleConnection>> mIdle = new HashMap<>();
+    private final ByteBuffer mProbe = ByteBuffer.allocate(1);
+
+    private final AtomicLong mHitCount = new AtomicLong(0);
+    private final AtomicLong mMissCount = new AtomicLong(0);
+
+    /**
+     * @param maxIdlePerHost max idle connections kept for a host
+     * @param keepAliveDuration ms an idle connection is kept
+     */
+    public ConnectionPool(int maxIdlePerHost, long keepAliveDuration) {
+        mMaxIdlePerHost = maxIdlePerHost;
+        mKeepAliveDuration = keepAliveDuration;
+    }
+
+    /**
+     * @return an idle connection to the host, or null if none.
+     */
+    public synchronized SocketChannel get(String host, int port) {
+        Deque<IdleConnection> idle = mIdle.get(key(host, port));
+        long now = System.currentTimeMillis();
+        IdleConnection conn;
+        while (null != idle && null != (conn = idle.pollLast())) {
+            if (now - conn.idleAt < mKeepAliveDuration && isHealthy(conn.channel)) {
+                mHitCount.incrementAndGet();
+                return conn.channel;
+            }
+            closeQuietly(conn.channel);
+        }
+        mMissCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Put back a connection whose response has been read completely.
+     */
+    public synchronized void put(String host, int port, SocketChannel channel) {
+        if (mMaxIdlePerHost <= 0 || !channel.isOpen()) {
+            closeQuietly(channel);
+            return;
+        }
+
+        evictIdle(System.currentTimeMillis());
+        String key = key(host, port);
+        Deque<IdleConnection> idle = mIdle.get(key);
+        if (null == idle) {
+            idle = new ArrayDeque<>();
+            mIdle.put(key, idle);
+        }
+        if (idle.size() >= mMaxIdlePerHost) {
+            closeQuietly(idle.pollFirst().channel);
+        }
+        idle.addLast(new IdleConnection(channel, System.currentTimeMillis()));
+    }
+
+    public synchronized void evictAll() {
+        for (Deque<IdleConnection> idle : mIdle.values()) {
+            for (IdleConnection conn : idle) {
+                closeQuietly(conn.channel);
+            }
+        }
+        mIdle.clear();
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public synchronized int getIdleCount() {
+        int cnt = 0;
+        for (Deque<IdleConnection> idle : mIdle.values()) {
+            cnt += idle.size();
+        }
+        return cnt;
+    }
+
+    private void evictIdle(long now) {
+        Iterator<Deque<IdleConnection>> hosts = mIdle.values().iterator();
+        while (hosts.hasNext()) {
+            Deque<IdleConnection> idle = hosts.next();
+            Iterator<IdleConnection> it = idle.iterator();
+            while (it.hasNext()) {
+                IdleConnection conn = it.next();
+                if (now - conn.idleAt >= mKeepAliveDuration) {
+                    closeQuietly(conn.channel);
+                    it.remove();
+                }
+            }
+            if (idle.isEmpty()) {
+                hosts.remove();
+            }
+        }
+    }
+
+    /**
+     * An idle connection has nothing to read, -1 if the server has closed it.
+     */
+    private boolean isHealthy(SocketChannel channel) {
+        if (!channel.isOpen() || channel.isBlocking()) return false;
+        try {
+            mProbe.clear();
+            return channel.read(mProbe) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String key(String host, int port) {
+        return host.toLowerCase(Locale.US) + ":" + port;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static final class IdleConnection {
+        final SocketChannel channel;
+        final long idleAt;
+
+        IdleConnection(SocketChannel channel, long idleAt) {
+            this.channel = channel;
+            this.idleAt = idleAt;
+        }
+    }
+}
@@ -16,6 +16,10 @@
 
 package com.alberwall.downloader.http;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Locale;
+
 @SuppressWarnings("WeakerAccess")
 public class HTTP {
     public static final String GET = "GET";
@@ -28,9 +32,16 @@ public class HTTP {
     public static final String HEADER_RANGE = "Range";
     public static final String HEADER_ETAG = "ETag";
     public static final String HEADER_USER_AGENT = "User-Agent";
+    public static final String HEADER_CONTENT_RANGE = "Content-Range";
+    public static final String HEADER_HOST = "Host";
+    public static final String HEADER_CONNECTION = "Connection";
+    public static final String HEADER_TRANSFER_ENCODING = "Transfer-Encoding";
 
     public static final String USER_AGENT = "User-Agent";
 
+    public static final int DEFAULT_PORT = 80;
+    public static final int MAX_HEAD_SIZE = 16 * 1024;
+
     public static final int HTTP_OK = 200; // Multiple Choice
     public static final int HTTP_PARTIAL = 206; // support break-point resume
 
@@ -55,7 +66,33 @@ public class HTTP {
                 code == HTTP_PERMANENT_REDIRECT;
     }
 
+    /**
+     * @param contentRange value of Content-Range, like "bytes 0-99/1234"
+     * @return the complete length, or -1 if unknown.
+     */
+    public static long parseCompleteLength(String contentRange) {
+        if (null == contentRange) return -1;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public static boolean isSuccessful(int responseCode) {
         return responseCode >= HTTP_OK && responseCode < HTTP_MULTIPLE_CHOICE;
     }
+
+    /**
+     * @return the host of url in lower case, or url itself if it is malformed.
+     */
+    public static String hostOf(String url) {
+        try {
+            return new URL(url).getHost().toLowerCase(Locale.US);
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
 }
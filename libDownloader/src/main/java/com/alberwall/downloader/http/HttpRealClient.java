@@ -17,11 +17,15 @@
 package com.alberwall.downloader.http;
 
 import com.alberwall.downloader.DownloadClient;
+import com.alberwall.downloader.RangeProbeClient;
 import com.alberwall.downloader.Source;
 import com.alberwall.downloader.exceptions.CancelException;
 import com.alberwall.downloader.exceptions.RequestException;
 import com.alberwall.downloader.exceptions.ResponseException;
 import com.alberwall.downloader.exceptions.TryTooMuchException;
+import com.alberwall.downloader.metrics.Histogram;
+import com.alberwall.downloader.metrics.Metrics;
+import com.alberwall.downloader.trace.Tracer;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -37,15 +41,39 @@ import static com.alberwall.downloader.http.HTTP.HEADER_LOCATION;
 import static com.alberwall.downloader.http.HTTP.MAX_REDIRECTION;
 import static com.alberwall.downloader.http.HTTP.isSuccessful;
 
-public class HttpRealClient implements DownloadClient<HttpParameters> {
+public class HttpRealClient implements RangeProbeClient<HttpParameters> {
     private final Source mSource;
     private URLConnection mConnection;
     private InputStream mInputStream;
     private volatile boolean mCancelled = false;
     private boolean mResumeSupported;
+    private final Histogram mConnectTime;
+    private final Histogram mFirstByteTime;
+    private long mConnectedTime = 0; // nanoTime, 0 once the response head has been read
+    private Tracer mTracer;
+    private long mTraceRequestId = -1;
+    private int mTraceBlockIndex = -1;
 
     public HttpRealClient(Source mSource) {
+        this(mSource, null);
+    }
+
+    /**
+     * @param metrics records connect time and time to first byte, may be null
+     */
+    public HttpRealClient(Source mSource, Metrics metrics) {
         this.mSource = mSource;
+        mConnectTime = null == metrics ? null : metrics.histogram(Metrics.CONNECT_TIME);
+        mFirstByteTime = null == metrics ? null : metrics.histogram(Metrics.FIRST_BYTE_TIME);
+    }
+
+    /**
+     * Trace the redirect hops of this client as stages of the request and block.
+     */
+    public void setTracer(Tracer tracer, long requestId, int blockIndex) {
+        mTracer = tracer;
+        mTraceRequestId = requestId;
+        mTraceBlockIndex = blockIndex;
     }
 
     @Override
@@ -57,7 +85,9 @@ public class HttpRealClient implements DownloadClient<HttpParameters> {
         redirectIfAny(source, HTTP.HEAD, 0, -1);
 
         checkResponse();
-        return getFileLength();
+        long len = getFileLength();
+        release();
+        return len;
     }
 
     @Override
@@ -71,6 +101,17 @@ public class HttpRealClient implements DownloadClient<HttpParameters> {
         checkResponse();
     }
 
+    @Override
+    public long getTotalLength() throws ResponseException {
+        if (!mResumeSupported) return getFileLength();
+
+        String range = mConnection.getHeaderField(HTTP.HEADER_CONTENT_RANGE);
+        long len = HTTP.parseCompleteLength(range);
+        if (len < 0)
+            throw new ResponseException("Unsupported Http Header: " + HTTP.HEADER_CONTENT_RANGE + "(" + range + ") - " + mSource.url);
+        return len;
+    }
+
     @Override
     public InputStream getInputStream() throws IOException {
         checkConnection();
@@ -118,7 +159,12 @@ public class HttpRealClient implements DownloadClient<HttpParameters> {
         }
 
         mConnection.setRequestProperty(HTTP.HEADER_RANGE, range);
+        long connectStart = System.nanoTime();
         mConnection.connect();
+        mConnectedTime = System.nanoTime();
+        if (null != mConnectTime) {
+            mConnectTime.recordNanos(mConnectedTime - connectStart);
+        }
     }
 
     private void redirectIfAny(Source<HttpParameters> source, String method, long start, long end)
@@ -138,15 +184,47 @@ public class HttpRealClient implements DownloadClient<HttpParameters> {
 
             params.redirectUrl = location;
             checkCancel("redirect " + location + " - " + mSource.url);
-            realConnect(source, method, start, end);
-            checkConnection();
-
-            code = getResponseCode();
+            release();
+            Tracer.Span span = null == mTracer ? null
+                    : mTracer.begin(Tracer.STAGE_REDIRECT, mTraceRequestId, mTraceBlockIndex, HTTP.hostOf(location));
+            boolean ok = false;
+            try {
+                realConnect(source, method, start, end);
+                checkConnection();
+
+                code = getResponseCode();
+                ok = true;
+            } finally {
+                if (null != span) span.end(0, !ok);
+            }
             location = mConnection.getHeaderField(HEADER_LOCATION);
             redirectTimes++;
         }
     }
 
+    /**
+     * Read and close the response which carries no file data, so that the platform
+     * keep-alive cache can reuse the connection instead of leaking it until GC.
+     */
+    private void release() {
+        InputStream in = null;
+        try {
+            in = mConnection.getInputStream();
+            byte[] buffer = new byte[512];
+            //noinspection StatementWithEmptyBody
+            while (in.read(buffer) != -1) ;
+        } catch (IOException e) {
+            in = ((HttpURLConnection) mConnection).getErrorStream();
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
     private void checkResponse() throws IOException {
         checkConnection();
         int code = getResponseCode();
@@ -157,7 +235,15 @@ public class HttpRealClient implements DownloadClient<HttpParameters> {
     }
 
     private int getResponseCode() throws IOException {
-        return ((HttpURLConnection) mConnection).getResponseCode();
+        int code = ((HttpURLConnection) mConnection).getResponseCode();
+        if (0 != mConnectedTime) {
+            // the request is sent and its response head read by the first call.
+            if (null != mFirstByteTime) {
+                mFirstByteTime.recordNanos(System.nanoTime() - mConnectedTime);
+            }
+            mConnectedTime = 0;
+        }
+        return code;
     }
 
     private long getFileLength() throws ResponseException {
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader.http;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Request line and headers of a HTTP/1.1 request written to a raw socket.
+ */
+public class HttpRequestHead {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public final String method;
+    public final URL url;
+
+    private final StringBuilder mHead = new StringBuilder(256);
+
+    public HttpRequestHead(String method, URL url) {
+        this.method = method;
+        this.url = url;
+
+        String path = url.getFile();
+        mHead.append(method).append(' ').append(path.isEmpty() ? "/" : path).append(" HTTP/1.1\r\n");
+        int port = url.getPort();
+        addHeader(HTTP.HEADER_HOST, port < 0 || port == HTTP.DEFAULT_PORT ? url.getHost() : url.getHost() + ":" + port);
+    }
+
+    public HttpRequestHead addHeader(String name, String value) {
+        mHead.append(name).append(": ").append(value).append("\r\n");
+        return this;
+    }
+
+    public HttpRequestHead addHeaders(Map<String, List<String>> headers) {
+        if (null == headers) return this;
+
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            List<String> list = entry.getValue();
+            if (null == list) continue;
+
+            for (String value : list) {
+                addHeader(entry.getKey(), value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @param start start position of file, inclusive
+     * @param end end position of file, inclusive, or no more than 0 for the rest of file.
+     */
+    public HttpRequestHead range(long start, long end) {
+        String range;
+        if (end <= 0) {
+            range = String.format(Locale.US, "bytes=%d-", start);
+        } else {
+            range = String.format(Locale.US, "bytes=%d-%d", start, end);
+        }
+        return addHeader(HTTP.HEADER_RANGE, range);
+    }
+
+    public ByteBuffer encode() {
+        return ByteBuffer.wrap((mHead.toString() + "\r\n").getBytes(ASCII));
+    }
+
+    @Override
+    public String toString() {
+        return mHead.toString();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader.http;
+
+import com.alberwall.downloader.exceptions.ResponseException;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Status line and headers of a HTTP/1.1 response read from a raw socket.
+ */
+public class HttpResponseHead {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public final String version;
+    public final int code;
+    private final Map<String, String> mHeaders;
+
+    private HttpResponseHead(String version, int code, Map<String, String> headers) {
+        this.version = version;
+        this.code = code;
+        mHeaders = headers;
+    }
+
+    /**
+     * Parse the response head from the beginning of a buffer in read mode.
+     * @return null if the head is incomplete, otherwise the buffer is positioned at the body.
+     */
+    public static HttpResponseHead parse(ByteBuffer buffer) throws IOException {
+        int begin = buffer.position();
+        int limit = buffer.limit();
+        int headEnd = -1;
+        for (int i = begin; i + 3 < limit; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                    && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                headEnd = i;
+                break;
+            }
+        }
+        if (headEnd < 0) {
+            if (limit - begin >= HTTP.MAX_HEAD_SIZE)
+                throw new IOException("Response head is too large");
+            return null;
+        }
+
+        byte[] bytes = new byte[headEnd - begin];
+        buffer.get(bytes);
+        buffer.position(headEnd + 4);
+
+        String[] lines = new String(bytes, ASCII).split("\r\n");
+        String[] status = lines[0].split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/"))
+            throw new IOException("Invalid status line: " + lines[0]);
+
+        int code;
+        try {
+            code = Integer.parseInt(status[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + lines[0]);
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) continue;
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+                    lines[i].substring(colon + 1).trim());
+        }
+        return new HttpResponseHead(status[0], code, headers);
+    }
+
+    public String getHeader(String name) {
+        return mHeaders.get(name.toLowerCase(Locale.US));
+    }
+
+    /**
+     * @return length of the body, or -1 if unknown.
+     */
+    public long getContentLength() {
+        String len = getHeader(HTTP.HEADER_CONTENT_LEN);
+        if (null == len) return -1;
+        try {
+            return Long.parseLong(len);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public boolean isChunked() {
+        String encoding = getHeader(HTTP.HEADER_TRANSFER_ENCODING);
+        return null != encoding && encoding.toLowerCase(Locale.US).contains("chunked");
+    }
+
+    /**
+     * @return true if the connection can be reused after the body is read completely.
+     */
+    public boolean isKeepAlive() {
+        if (isChunked() || getContentLength() < 0) return false;
+
+        String connection = getHeader(HTTP.HEADER_CONNECTION);
+        if ("HTTP/1.0".equals(version)) {
+            return null != connection && connection.equalsIgnoreCase("keep-alive");
+        }
+        return null == connection || !connection.equalsIgnoreCase("close");
+    }
+
+    /**
+     * @return the redirect url resolved against the request url.
+     */
+    public String getLocation(URL requestUrl) throws ResponseException {
+        String location = getHeader(HTTP.HEADER_LOCATION);
+        if (null == location) return null;
+        try {
+            return new URL(requestUrl, location).toString();
+        } catch (MalformedURLException e) {
+            throw new ResponseException("Invalid redirection Location: " + location, e);
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader.http;
+
+import com.alberwall.downloader.DownloadClient;
+import com.alberwall.downloader.RangeProbeClient;
+import com.alberwall.downloader.Source;
+import com.alberwall.downloader.exceptions.CancelException;
+import com.alberwall.downloader.exceptions.RequestException;
+import com.alberwall.downloader.exceptions.ResponseException;
+import com.alberwall.downloader.exceptions.TryTooMuchException;
+import com.alberwall.downloader.metrics.Histogram;
+import com.alberwall.downloader.metrics.Metrics;
+import com.alberwall.downloader.trace.Tracer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import static com.alberwall.downloader.http.HTTP.MAX_REDIRECTION;
+import static com.alberwall.downloader.http.HTTP.isSuccessful;
+
+/**
+ * Plain http client on a non-blocking SocketChannel, waits with its own Selector
+ * so that connect and read timeouts can be applied. The selector is opened once and kept
+ * across retries and redirects until the client is done. If the source is redirected
+ * to https, the rest is done by a {@link HttpRealClient}.
+ */
+public class NioHttpClient implements RangeProbeClient<HttpParameters> {
+    private final Source mSource;
+    private final ConnectionPool mPool;
+    private SocketChannel mChannel;
+    private String mHost;
+    private int mPort;
+    private volatile Selector mSelector;
+    private URL mUrl;
+    private HttpResponseHead mResponse;
+    private ByteBuffer mBody;
+    private int mReadTimeout;
+    private volatile boolean mCancelled = false;
+    private boolean mResumeSupported;
+    private final Histogram mConnectTime;
+    private final Histogram mFirstByteTime;
+    private final Metrics mMetrics;
+    private volatile HttpRealClient mFallback;
+    private Tracer mTracer;
+    private long mTraceRequestId = -1;
+    private int mTraceBlockIndex = -1;
+
+    public NioHttpClient(Source source, ConnectionPool pool) {
+        this(source, pool, null);
+    }
+
+    /**
+     * @param metrics records connect time and time to first byte, may be null
+     */
+    public NioHttpClient(Source source, ConnectionPool pool, Metrics metrics) {
+        mSource = source;
+        mPool = pool;
+        mMetrics = metrics;
+        mConnectTime = null == metrics ? null : metrics.histogram(Metrics.CONNECT_TIME);
+        mFirstByteTime = null == metrics ? null : metrics.histogram(Metrics.FIRST_BYTE_TIME);
+    }
+
+    /**
+     * Trace the redirect hops of this client as stages of the request and block.
+     */
+    public void setTracer(Tracer tracer, long requestId, int blockIndex) {
+        mTracer = tracer;
+        mTraceRequestId = requestId;
+        mTraceBlockIndex = blockIndex;
+    }
+
+    /**
+     * @return true if the source, or where it has been redirected to, is plain http.
+     */
+    public static boolean isSupported(Source source) {
+        if (!(source instanceof HttpSource)) return false;
+        String redirectUrl = ((HttpSource) source).parameters.redirectUrl;
+        String url = null == redirectUrl ? source.url : redirectUrl;
+        return url.regionMatches(true, 0, "http:", 0, 5);
+    }
+
+    @Override
+    public long queryFileLength(Source<HttpParameters> source)
+            throws IOException, CancelException, RequestException, ResponseException {
+        if (!isSupported(source)) return fallBack().queryFileLength(source);
+        try {
+            realConnect(source, HTTP.HEAD, 0, -1);
+
+            checkCancel("begin redirect url");
+            redirectIfAny(source, HTTP.HEAD, 0, -1);
+            if (null != mFallback) return mFallback.queryFileLength(source);
+
+            checkResponse();
+            long len = getFileLength();
+            releaseChannel(0);
+            return len;
+        } finally {
+            closeAll();
+        }
+    }
+
+    @Override
+    public void connect(Source<HttpParameters> source, long start, long end)
+            throws IOException, CancelException, RequestException {
+        if (!isSupported(source)) {
+            fallBack().connect(source, start, end);
+            return;
+        }
+        boolean ok = false;
+        try {
+            realConnect(source, HTTP.GET, start, end);
+
+            checkCancel("begin redirect url");
+            redirectIfAny(source, HTTP.GET, start, end);
+            if (null != mFallback) {
+                closeAll();
+                mFallback.connect(source, start, end);
+                ok = true;
+                return;
+            }
+
+            checkResponse();
+            ok = true;
+        } finally {
+            // otherwise the body stream closes them.
+            if (!ok) closeAll();
+        }
+    }
+
+    @Override
+    public long getTotalLength() throws ResponseException {
+        HttpRealClient fallback = mFallback;
+        if (null != fallback) return fallback.getTotalLength();
+        if (!mResumeSupported) return getFileLength();
+
+        String range = mResponse.getHeader(HTTP.HEADER_CONTENT_RANGE);
+        long len = HTTP.parseCompleteLength(range);
+        if (len < 0)
+            throw new ResponseException("Unsupported Http Header: " + HTTP.HEADER_CONTENT_RANGE + "(" + range + ") - " + mSource.url);
+        return len;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        HttpRealClient fallback = mFallback;
+        if (null != fallback) return fallback.getInputStream();
+        if (null == mChannel || null == mResponse)
+            throw new IOException("Connection is null" + " - " + mSource.url);
+
+        long len = mResponse.getContentLength();
+        return new BodyInputStream(len < 0 ? Long.MAX_VALUE : len);
+    }
+
+    @Override
+    public boolean isResumeSupported() {
+        HttpRealClient fallback = mFallback;
+        return null == fallback ? mResumeSupported : fallback.isResumeSupported();
+    }
+
+    @Override
+    public void close() {
+        mCancelled = true;
+        HttpRealClient fallback = mFallback;
+        if (null != fallback) {
+            fallback.close();
+        }
+        Selector selector = mSelector;
+        if (null != selector) {
+            selector.wakeup();
+        }
+    }
+
+    private void realConnect(Source<HttpParameters> source, String method, long start, long end)
+            throws IOException, RequestException {
+        if (start < 0 || (end > 0 && end < start)) {
+            throw new RequestException("Invalid start and end: " + start + ", " + end + " - " + mSource.url);
+        }
+
+        HttpParameters params = source.parameters;
+        mUrl = new URL((null == params.redirectUrl) ? source.url : params.redirectUrl);
+        if (!"http".equalsIgnoreCase(mUrl.getProtocol()))
+            throw new IOException("Only supported http" + " - " + mUrl);
+
+        mReadTimeout = params.readTimeout;
+        mHost = mUrl.getHost();
+        mPort = mUrl.getPort() < 0 ? HTTP.DEFAULT_PORT : mUrl.getPort();
+        ByteBuffer request = new HttpRequestHead(method, mUrl)
+                .addHeaders(params.headers)
+                .range(start, end)
+                .encode();
+
+        SocketChannel pooled = mPool.get(mHost, mPort);
+        if (null != pooled) {
+            try {
+                exchange(pooled, request, params.connectTimeout);
+                return;
+            } catch (IOException e) {
+                // the server may close an idle connection at any time, try a new one.
+                request.rewind();
+            }
+        }
+        exchange(null, request, params.connectTimeout);
+    }
+
+    private void exchange(SocketChannel pooled, ByteBuffer request, int connectTimeout) throws IOException {
+        closeChannel();
+        if (null == mSelector) {
+            mSelector = Selector.open();
+        }
+        if (null != pooled) {
+            mChannel = pooled;
+        } else {
+            long start = System.nanoTime();
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            if (!mChannel.connect(new InetSocketAddress(mHost, mPort))) {
+                while (!mChannel.finishConnect()) {
+                    waitFor(SelectionKey.OP_CONNECT, connectTimeout);
+                }
+            }
+            if (null != mConnectTime) {
+                mConnectTime.recordNanos(System.nanoTime() - start);
+            }
+        }
+        long connectedTime = System.nanoTime();
+
+        while (request.hasRemaining()) {
+            if (0 == mChannel.write(request)) {
+                waitFor(SelectionKey.OP_WRITE, mReadTimeout);
+            }
+        }
+
+        mResponse = readResponseHead();
+        if (null != mFirstByteTime) {
+            mFirstByteTime.recordNanos(System.nanoTime() - connectedTime);
+        }
+    }
+
+    private HttpResponseHead readResponseHead() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HTTP.MAX_HEAD_SIZE);
+        while (true) {
+            int n = mChannel.read(buffer);
+            if (n < 0) throw new IOException("Connection closed before response" + " - " + mUrl);
+            if (n == 0) {
+                waitFor(SelectionKey.OP_READ, mReadTimeout);
+                continue;
+            }
+
+            buffer.flip();
+            HttpResponseHead head = HttpResponseHead.parse(buffer);
+            if (null != head) {
+                mBody = buffer;
+                return head;
+            }
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+        }
+    }
+
+    private void redirectIfAny(Source<HttpParameters> source, String method, long start, long end)
+            throws IOException, CancelException, RequestException {
+        HttpParameters params = source.parameters;
+        int redirectTimes = 0;
+        while (HTTP.isRedirect(mResponse.code)) {
+            String location;
+            try {
+                location = mResponse.getLocation(mUrl);
+            } catch (ResponseException e) {
+                throw new IOException(e.getMessage() + " - " + mSource.url);
+            }
+            if (null == location) {
+                throw new IOException("Redirection Location is null" + " - " + mSource.url);
+            }
+            if (redirectTimes >= MAX_REDIRECTION) {
+                throw new TryTooMuchException(MAX_REDIRECTION, "Max redirection done" + " - " + mSource.url);
+            }
+
+            params.redirectUrl = location;
+            checkCancel("redirect " + location);
+            releaseChannel(HTTP.HEAD.equals(method) ? 0 : mResponse.getContentLength());
+            if (!isSupported(source)) {
+                // the fallback connects to the location.
+                fallBack();
+                return;
+            }
+            Tracer.Span span = null == mTracer ? null
+                    : mTracer.begin(Tracer.STAGE_REDIRECT, mTraceRequestId, mTraceBlockIndex, HTTP.hostOf(location));
+            boolean ok = false;
+            try {
+                realConnect(source, method, start, end);
+                ok = true;
+            } finally {
+                if (null != span) span.end(0, !ok);
+            }
+            redirectTimes++;
+        }
+    }
+
+    private HttpRealClient fallBack() {
+        HttpRealClient client = new HttpRealClient(mSource, mMetrics);
+        if (null != mTracer) {
+            client.setTracer(mTracer, mTraceRequestId, mTraceBlockIndex);
+        }
+        mFallback = client;
+        if (mCancelled) {
+            client.close();
+        }
+        return client;
+    }
+
+    private void checkResponse() throws IOException {
+        int code = mResponse.code;
+        if (!isSuccessful(code))
+            throw new IOException("res code: " + code + " - " + mSource.url);
+        if (mResponse.isChunked())
+            throw new IOException("Unsupported chunked response" + " - " + mSource.url);
+
+        mResumeSupported = code == HTTP.HTTP_PARTIAL;
+    }
+
+    private long getFileLength() throws ResponseException {
+        long len = mResponse.getContentLength();
+        if (len < 0)
+            throw new ResponseException("Unsupported Http Header: " + HTTP.HEADER_CONTENT_LEN + " - " + mSource.url);
+        return len;
+    }
+
+    private void waitFor(int op, int timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        mChannel.register(mSelector, op);
+        while (true) {
+            if (mCancelled) throw new IOException("Cancelled" + " - " + mSource.url);
+
+            long wait = 0;
+            if (timeout > 0) {
+                wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) throw new SocketTimeoutException("Timeout" + " - " + mUrl);
+            }
+
+            if (mSelector.select(wait) > 0) {
+                mSelector.selectedKeys().clear();
+                return;
+            }
+        }
+    }
+
+    private void checkCancel(String action) throws CancelException {
+        if (mCancelled)
+            throw new CancelException("Cancelled when " + action + " - " + mSource.url);
+    }
+
+    /**
+     * Put the connection back to pool if the rest of body is as long as what has been
+     * read into buffer, otherwise close it.
+     */
+    private void releaseChannel(long bodyRemaining) {
+        if (null != mChannel && null != mResponse && mResponse.isKeepAlive()
+                && bodyRemaining == mBody.remaining()) {
+            // the channel must be deregistered from the selector before it is pooled.
+            SelectionKey key = mChannel.keyFor(mSelector);
+            try {
+                if (null != key) {
+                    key.cancel();
+                    mSelector.selectNow();
+                }
+                mPool.put(mHost, mPort, mChannel);
+                mChannel = null;
+            } catch (IOException e) {
+                // closed below
+            }
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (null != mChannel) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+            }
+            mChannel = null;
+        }
+    }
+
+    private void closeAll() {
+        closeChannel();
+        if (null != mSelector) {
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+            }
+            mSelector = null;
+        }
+    }
+
+    private class BodyInputStream extends InputStream {
+        private long mRemaining;
+
+        BodyInputStream(long contentLength) {
+            mRemaining = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (mRemaining <= 0 || null == mChannel) return -1;
+
+            int max = (int) Math.min(len, mRemaining);
+            int n;
+            if (mBody.hasRemaining()) {
+                n = Math.min(max, mBody.remaining());
+                mBody.get(b, off, n);
+            } else {
+                ByteBuffer dst = ByteBuffer.wrap(b, off, max);
+                while ((n = mChannel.read(dst)) == 0) {
+                    waitFor(SelectionKey.OP_READ, mReadTimeout);
+                }
+                if (n < 0) return -1;
+            }
+
+            mRemaining -= n;
+            if (mRemaining <= 0) {
+                releaseChannel(0);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            closeAll();
+        }
+    }
+}
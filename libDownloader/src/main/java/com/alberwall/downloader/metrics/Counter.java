@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum which many threads add to without contending, each thread adds to the cell of its
+ * stripe, the cells are on different cache lines.
+ */
+public final class Counter {
+    private static final int MAX_STRIPES = 16;
+    private static final int PADDING = 8; // longs in a cache line
+
+    private final AtomicLongArray mCells;
+    private final int mMask;
+
+    public Counter() {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n < MAX_STRIPES) {
+            n <<= 1;
+        }
+        mMask = n - 1;
+        mCells = new AtomicLongArray(n * PADDING);
+    }
+
+    public void add(long x) {
+        mCells.getAndAdd(((int) Thread.currentThread().getId() & mMask) * PADDING, x);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i <= mMask; i++) {
+            sum += mCells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Not atomic with concurrent adds.
+     */
+    public void reset() {
+        for (int i = 0; i <= mMask; i++) {
+            mCells.set(i * PADDING, 0);
+        }
+    }
+}
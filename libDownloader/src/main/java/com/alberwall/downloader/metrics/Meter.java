@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count of events with its recent rate per second, an exponentially weighted moving
+ * average over about WINDOW, updated at most once every TICK by whichever thread comes.
+ */
+public final class Meter {
+    private static final long TICK = 1000000000L; // ns
+    private static final double WINDOW = 5000000000.0; // ns
+
+    private final Counter mCount = new Counter();
+    private final AtomicLong mLastTick = new AtomicLong(System.nanoTime());
+    private volatile double mRate = 0;
+
+    // guarded by this
+    private long mLastCount = 0;
+    private boolean mTicked = false;
+
+    public void mark(long n) {
+        mCount.add(n);
+        tickIfNeeded();
+    }
+
+    public long getCount() {
+        return mCount.sum();
+    }
+
+    /**
+     * @return events per second
+     */
+    public double getRate() {
+        tickIfNeeded();
+        return mRate;
+    }
+
+    private void tickIfNeeded() {
+        long now = System.nanoTime();
+        long last = mLastTick.get();
+        long age = now - last;
+        if (age < TICK || !mLastTick.compareAndSet(last, now)) return;
+
+        synchronized (this) {
+            long count = mCount.sum();
+            double instant = (count - mLastCount) * 1e9 / age;
+            mLastCount = count;
+            if (mTicked) {
+                double alpha = 1 - Math.exp(-age / WINDOW);
+                mRate += alpha * (instant - mRate);
+            } else {
+                mRate = instant;
+                mTicked = true;
+            }
+        }
+    }
+}
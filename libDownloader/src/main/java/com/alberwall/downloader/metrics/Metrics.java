@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of the metrics of a downloader by name. A metric is created on first use and
+ * lives until it is removed, callers on hot paths should keep the metric instead of looking
+ * it up each time.
+ */
+public final class Metrics {
+    /** meter of bytes downloaded by all requests */
+    public static final String BYTES = "bytes";
+    /** meter of bytes downloaded by a request, followed by the path of its file */
+    public static final String BYTES_REQUEST = "bytes.request.";
+    /** meter of bytes downloaded from a host, followed by the host */
+    public static final String BYTES_HOST = "bytes.host.";
+    /** counter of block retries */
+    public static final String RETRIES = "retries";
+    /** histogram of the time to connect */
+    public static final String CONNECT_TIME = "connect.time";
+    /** histogram of the time from connected to the response head */
+    public static final String FIRST_BYTE_TIME = "first.byte.time";
+    /** histogram of the time to sync a file to disk */
+    public static final String FSYNC_TIME = "fsync.time";
+    /** gauges of the tasks waiting in the queues */
+    public static final String PREPARE_QUEUE_DEPTH = "prepare.queue.depth";
+    public static final String DOWNLOAD_QUEUE_DEPTH = "download.queue.depth";
+    /** histograms of the time a task waits in the queues */
+    public static final String PREPARE_QUEUE_WAIT = "prepare.queue.wait";
+    public static final String DOWNLOAD_QUEUE_WAIT = "download.queue.wait";
+
+    private final ConcurrentMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Meter> mMeters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> mGauges = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private ScheduledThreadPoolExecutor mExportTimer;
+    private MetricsExporter mExporter;
+
+    public Counter counter(String name) {
+        Counter c = mCounters.get(name);
+        if (null == c) {
+            Counter created = new Counter();
+            c = mCounters.putIfAbsent(name, created);
+            if (null == c) c = created;
+        }
+        return c;
+    }
+
+    public Meter meter(String name) {
+        Meter m = mMeters.get(name);
+        if (null == m) {
+            Meter created = new Meter();
+            m = mMeters.putIfAbsent(name, created);
+            if (null == m) m = created;
+        }
+        return m;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram h = mHistograms.get(name);
+        if (null == h) {
+            Histogram created = new Histogram();
+            h = mHistograms.putIfAbsent(name, created);
+            if (null == h) h = created;
+        }
+        return h;
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    /**
+     * Remove the metrics of the name, of any kind.
+     */
+    public void remove(String name) {
+        mCounters.remove(name);
+        mMeters.remove(name);
+        mHistograms.remove(name);
+        mGauges.remove(name);
+    }
+
+    public MetricsSnapshot snapshot() {
+        TreeMap<String, Long> counts = new TreeMap<>();
+        TreeMap<String, Double> rates = new TreeMap<>();
+        TreeMap<String, Long> gauges = new TreeMap<>();
+        TreeMap<String, Histogram.Snapshot> histograms = new TreeMap<>();
+        for (Map.Entry<String, Counter> e : mCounters.entrySet()) {
+            counts.put(e.getKey(), e.getValue().sum());
+        }
+        for (Map.Entry<String, Meter> e : mMeters.entrySet()) {
+            counts.put(e.getKey(), e.getValue().getCount());
+            rates.put(e.getKey(), e.getValue().getRate());
+        }
+        for (Map.Entry<String, Gauge> e : mGauges.entrySet()) {
+            gauges.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> e : mHistograms.entrySet()) {
+            histograms.put(e.getKey(), e.getValue().snapshot());
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), counts, rates, gauges, histograms);
+    }
+
+    /**
+     * Export a snapshot every interval ms until {@link #shutdown()}.
+     */
+    public synchronized void startExport(final MetricsExporter exporter, long interval) {
+        if (null != mExportTimer) throw new IllegalStateException("Exporter has been started");
+
+        mExporter = exporter;
+        mExportTimer = new ScheduledThreadPoolExecutor(1);
+        mExportTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                export(exporter);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the exporter after a last export.
+     */
+    public void shutdown() {
+        MetricsExporter exporter;
+        synchronized (this) {
+            if (null == mExportTimer) return;
+            mExportTimer.shutdown();
+            mExportTimer = null;
+            exporter = mExporter;
+            mExporter = null;
+        }
+        export(exporter);
+    }
+
+    private void export(MetricsExporter exporter) {
+        try {
+            exporter.export(snapshot());
+        } catch (RuntimeException e) {
+            // a failing exporter should not stop the later exports
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Values of all the metrics at a point in time, by name.
+ */
+public final class MetricsSnapshot {
+    public final long timestamp;
+    /** totals of counters and meters */
+    public final Map<String, Long> counts;
+    /** per second, of meters */
+    public final Map<String, Double> rates;
+    public final Map<String, Long> gauges;
+    /** in microseconds */
+    public final Map<String, Histogram.Snapshot> histograms;
+
+    MetricsSnapshot(long timestamp, TreeMap<String, Long> counts, TreeMap<String, Double> rates,
+                    TreeMap<String, Long> gauges, TreeMap<String, Histogram.Snapshot> histograms) {
+        this.timestamp = timestamp;
+        this.counts = Collections.unmodifiableMap(counts);
+        this.rates = Collections.unmodifiableMap(rates);
+        this.gauges = Collections.unmodifiableMap(gauges);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    @Override
+    public String toString() {
+        return "{" +
+                "ts=" + timestamp +
+                ", counts=" + counts +
+                ", rates=" + rates +
+                ", gauges=" + gauges +
+                ", histograms=" + histograms +
+                '}';
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader.trace;
+
+/**
+ * Receives the stages of downloads as spans, e.g. to record them as JFR events or in
+ * a tracing system. A stage which is a point in time is begun and ended at once.
+ * Spans are begun and ended on the thread running the stage, they must be cheap.
+ */
+public interface Tracer {
+    /** length query of a request, bytes is the length */
+    String STAGE_PROBE = "probe";
+    /** a redirect hop, host is the new one */
+    String STAGE_REDIRECT = "redirect";
+    /** connect of a block until the response head */
+    String STAGE_CONNECT = "connect";
+    /** reading the body of a block, bytes is what has been read */
+    String STAGE_READ = "read";
+    /** sync of a file to disk */
+    String STAGE_FSYNC = "fsync";
+    /** progress saved to the database, bytes is the progress */
+    String STAGE_DB_PROGRESS = "db.progress";
+    /** a block is retried */
+    String STAGE_RETRY = "retry";
+    /** a request is cancelled */
+    String STAGE_CANCEL = "cancel";
+
+    /**
+     * @param requestId -1 if the stage is of several requests
+     * @param blockIndex -1 if the stage is not of a block
+     * @param host null if unknown
+     * @return never null
+     */
+    Span begin(String stage, long requestId, int blockIndex, String host);
+
+    interface Span {
+        /**
+         * @param bytes as the stage says, 0 if it has none
+         * @param failed true if the stage ends with an error or cancel
+         */
+        void end(long bytes, boolean failed);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    private static final int SIZE = 1024;
+
+    @Test
+    public void released_isReused() {
+        BufferPool pool = new BufferPool(SIZE, 4 * SIZE);
+        ByteBuffer buffer = pool.acquire(false);
+        assertEquals(SIZE, buffer.capacity());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        assertEquals(1, pool.getIdleCount());
+
+        ByteBuffer again = pool.acquire(false);
+        assertSame(buffer, again);
+        assertEquals(0, again.position()); // cleared
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(1, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void heapAndDirect_areKeptApart() {
+        BufferPool pool = new BufferPool(SIZE, 4 * SIZE);
+        pool.release(pool.acquire(false));
+
+        ByteBuffer direct = pool.acquire(true);
+        assertTrue(direct.isDirect());
+        assertEquals(0, pool.getHitCount());
+        pool.release(direct);
+        assertSame(direct, pool.acquire(true));
+        assertFalse(pool.acquire(false).isDirect());
+    }
+
+    @Test
+    public void idleBytes_areBounded() {
+        BufferPool pool = new BufferPool(SIZE, 2 * SIZE);
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(false);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(0, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void noPooling_whenMaxIdleIsZero() {
+        BufferPool pool = new BufferPool(SIZE, 0);
+        ByteBuffer buffer = pool.acquire(false);
+        pool.release(buffer);
+        assertEquals(0, pool.getIdleCount());
+        assertNotSame(buffer, pool.acquire(false));
+    }
+
+    @Test
+    public void foreignBuffers_areNotPooled() {
+        BufferPool pool = new BufferPool(SIZE, 4 * SIZE);
+        pool.acquire(false);
+        pool.release(ByteBuffer.allocate(SIZE / 2));
+        pool.release(null);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getOutstandingCount());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionControllerTest {
+    private static final long WINDOW = 2000;
+    private static final long START = 100000;
+
+    @Test
+    public void initial_isClampedToMax() {
+        assertEquals(1, new ConnectionController(0, 4).getTarget());
+        assertEquals(4, new ConnectionController(8, 4).getTarget());
+    }
+
+    @Test
+    public void firstWindow_onlyStartsMeasuring() {
+        ConnectionController c = new ConnectionController(2, 8);
+        assertFalse(c.onProgress(0, START));
+        assertFalse(c.onProgress(1000, START + WINDOW - 1));
+        assertEquals(2, c.getTarget());
+    }
+
+    @Test
+    public void growingThroughput_addsConnectionsUpToMax() {
+        ConnectionController c = new ConnectionController(2, 4);
+        c.onProgress(0, START);
+        assertTrue(c.onProgress(2000, START + WINDOW)); // 1 byte/ms
+        assertEquals(3, c.getTarget());
+        assertTrue(c.onProgress(6000, START + 2 * WINDOW)); // 2 bytes/ms
+        assertEquals(4, c.getTarget());
+        assertFalse(c.onProgress(14000, START + 3 * WINDOW)); // 4 bytes/ms, at max
+        assertEquals(4, c.getTarget());
+    }
+
+    @Test
+    public void noGain_givesUpTheLastConnectionOnce() {
+        ConnectionController c = new ConnectionController(2, 8);
+        c.onProgress(0, START);
+        c.onProgress(2000, START + WINDOW); // 3 connections
+        c.onProgress(6000, START + 2 * WINDOW); // 4 connections
+
+        // 2 bytes/ms again, the 4th connection did not help.
+        assertTrue(c.onProgress(10000, START + 3 * WINDOW));
+        assertEquals(3, c.getTarget());
+        // still the same, but nothing was added to give up.
+        assertFalse(c.onProgress(14000, START + 4 * WINDOW));
+        assertEquals(3, c.getTarget());
+    }
+
+    @Test
+    public void errors_halveTheTarget() {
+        ConnectionController c = new ConnectionController(8, 8);
+        c.onProgress(0, START);
+        c.onError();
+        assertTrue(c.onProgress(100000, START + WINDOW));
+        assertEquals(4, c.getTarget());
+
+        // the errors are counted per window.
+        c.onProgress(100000, START + 2 * WINDOW);
+        assertEquals(4, c.getTarget());
+    }
+
+    @Test
+    public void errors_neverGoBelowOne() {
+        ConnectionController c = new ConnectionController(1, 8);
+        c.onProgress(0, START);
+        c.onError();
+        assertFalse(c.onProgress(1000, START + WINDOW));
+        assertEquals(1, c.getTarget());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FileBlockRequestTest {
+    private final Source mSource = new Source<>("http://a/file", null);
+    private final DownloadRequest mReq = new DownloadRequest(null, 1,
+            DownloadRequest.PRIORITY_MEDIUM, "dir", "file", 1000, 1000, 0, mSource);
+
+    @Test
+    public void reserve_stopsAtTheEnd() {
+        FileBlockRequest block = block(0, 999, 0);
+        assertEquals(400, block.reserve(400));
+        assertEquals(400, block.reserve(400));
+        assertEquals(200, block.reserve(400));
+        assertEquals(0, block.reserve(1));
+        assertEquals(0, block.remainingBytes());
+        assertEquals(1000, block.reservedPosition());
+    }
+
+    @Test
+    public void reserve_beginsAfterTheDownloadedBytes() {
+        FileBlockRequest block = block(1000, 1999, 300);
+        assertEquals(1300, block.reservedPosition());
+        assertEquals(700, block.reserve(1000));
+    }
+
+    @Test
+    public void resetReserved_dropsClaimsNotWritten() {
+        FileBlockRequest block = block(0, 999, 0);
+        block.reserve(500);
+        block.addWrittenBytes(200);
+        block.resetReserved();
+        assertEquals(200, block.reservedPosition());
+        assertEquals(800, block.remainingBytes());
+    }
+
+    @Test
+    public void splitTail_takesTheSecondHalfOfTheUnclaimedRange() {
+        FileBlockRequest block = block(0, 999, 0);
+        block.reserve(200);
+
+        FileBlock tail = block.splitTail(1, 100);
+        assertNotNull(tail);
+        assertEquals(1, tail.blockIndex);
+        assertEquals(600, tail.start);
+        assertEquals(999, tail.getEnd());
+        assertSame(mSource, tail.getSource());
+        assertEquals(599, block.fileBlock.getEnd());
+
+        // the running task now stops at the new end.
+        assertEquals(400, block.reserve(1000));
+    }
+
+    @Test
+    public void splitTail_leavesASmallBlock() {
+        FileBlockRequest block = block(0, 999, 0);
+        block.reserve(801);
+        assertNull(block.splitTail(1, 100));
+        assertEquals(999, block.fileBlock.getEnd());
+    }
+
+    @Test
+    public void splitTail_ofAResumedBlock() {
+        FileBlockRequest block = block(0, 999, 600);
+        FileBlock tail = block.splitTail(2, 100);
+        assertEquals(800, tail.start);
+        assertEquals(799, block.fileBlock.getEnd());
+        assertFalse(block.isFileBlockCompleted());
+    }
+
+    @Test
+    public void truncate_keepsTheClaimedBytes() {
+        FileBlockRequest block = block(0, 999, 0);
+        block.reserve(500);
+        assertEquals(499, block.truncate(99));
+        assertEquals(0, block.reserve(1));
+        assertEquals(499, block.truncate(799));
+    }
+
+    private FileBlockRequest block(long start, long end, long downloadedBytes) {
+        return new FileBlockRequest(mReq, new FileBlock(mSource, 0, start, end), downloadedBytes);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import com.alberwall.downloader.metrics.Histogram;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class HostSchedulerTest {
+    // tasks run on the caller, they hold their slots until done.
+    private static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<String> mStarted = new ArrayList<>();
+    private final Map<String, FakeTask> mTasks = new HashMap<>();
+    private long mNextId = 1;
+
+    @Test
+    public void perHostLimit_queuesTheRest() {
+        HostScheduler scheduler = scheduler(10, 0, 2);
+        FakeTask a1 = execute(scheduler, "a1", "a", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "a2", "a", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "a3", "a", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "b1", "b", DownloadRequest.PRIORITY_MEDIUM);
+
+        assertEquals(list("a1", "a2", "b1"), mStarted);
+        assertEquals(2, scheduler.getRunningCount("a"));
+        assertEquals(1, scheduler.getQueuedCount());
+
+        a1.done();
+        assertEquals(list("a1", "a2", "b1", "a3"), mStarted);
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    @Test
+    public void totalLimit_queuesTheRest() {
+        HostScheduler scheduler = scheduler(2, 0, 5);
+        FakeTask a = execute(scheduler, "a", "a", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "b", "b", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "c", "c", DownloadRequest.PRIORITY_MEDIUM);
+
+        assertEquals(list("a", "b"), mStarted);
+        assertEquals(2, scheduler.getRunningCount());
+
+        a.done();
+        assertEquals(list("a", "b", "c"), mStarted);
+        assertEquals(2, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void higherPriority_goesFirst() {
+        HostScheduler scheduler = scheduler(1, 0, 5);
+        FakeTask blocker = execute(scheduler, "blocker", "x", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "low", "a", DownloadRequest.PRIORITY_LOW);
+        execute(scheduler, "high", "b", DownloadRequest.PRIORITY_HIGH);
+        execute(scheduler, "medium", "a", DownloadRequest.PRIORITY_MEDIUM);
+
+        blocker.done();
+        assertEquals(list("blocker", "high"), mStarted);
+        last().done();
+        assertEquals("medium", mStarted.get(2));
+        last().done();
+        assertEquals("low", mStarted.get(3));
+    }
+
+    @Test
+    public void hosts_takeTurns() {
+        HostScheduler scheduler = scheduler(1, 0, 5);
+        FakeTask blocker = execute(scheduler, "blocker", "x", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "a1", "a", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "a2", "a", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "a3", "a", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "b1", "b", DownloadRequest.PRIORITY_MEDIUM);
+
+        blocker.done();
+        for (int i = 0; i < 4; i++) {
+            last().done();
+        }
+        assertEquals(list("blocker", "a1", "b1", "a2", "a3"), mStarted);
+    }
+
+    @Test
+    public void loopTasks_haveTheirOwnTotalLimit() {
+        HostScheduler scheduler = scheduler(1, 1, 5);
+        execute(scheduler, "pool", "a", DownloadRequest.PRIORITY_MEDIUM);
+        FakeTask loop1 = execute(scheduler, "loop1", "b", DownloadRequest.PRIORITY_MEDIUM, true);
+        execute(scheduler, "loop2", "c", DownloadRequest.PRIORITY_MEDIUM, true);
+
+        assertEquals(list("pool", "loop1"), mStarted);
+        loop1.done();
+        assertEquals(list("pool", "loop1", "loop2"), mStarted);
+    }
+
+    @Test
+    public void loopTasks_shareTheLimitPerHost() {
+        HostScheduler scheduler = scheduler(5, 5, 1);
+        FakeTask pool = execute(scheduler, "pool", "a", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "loop", "a", DownloadRequest.PRIORITY_MEDIUM, true);
+
+        assertEquals(list("pool"), mStarted);
+        pool.done();
+        assertEquals(list("pool", "loop"), mStarted);
+    }
+
+    @Test
+    public void tryExecute_onlyRunsAtOnce() {
+        HostScheduler scheduler = scheduler(2, 0, 1);
+        FakeTask a = task("a1", DownloadRequest.PRIORITY_MEDIUM);
+        assertTrue(scheduler.tryExecute(new TaskRunnable(a), "a", DownloadRequest.PRIORITY_MEDIUM));
+        // the host is at its limit, the task is not queued.
+        assertFalse(scheduler.tryExecute(new TaskRunnable(task("a2", DownloadRequest.PRIORITY_MEDIUM)),
+                "a", DownloadRequest.PRIORITY_MEDIUM));
+        assertEquals(0, scheduler.getQueuedCount());
+
+        execute(scheduler, "a3", "a", DownloadRequest.PRIORITY_MEDIUM);
+        execute(scheduler, "b1", "b", DownloadRequest.PRIORITY_MEDIUM);
+        // the pool is full.
+        assertFalse(scheduler.tryExecute(new TaskRunnable(task("c1", DownloadRequest.PRIORITY_MEDIUM)),
+                "c", DownloadRequest.PRIORITY_MEDIUM));
+
+        a.done();
+        // a task of the host is waiting, it goes first.
+        assertFalse(scheduler.tryExecute(new TaskRunnable(task("a4", DownloadRequest.PRIORITY_MEDIUM)),
+                "a", DownloadRequest.PRIORITY_MEDIUM));
+        assertEquals(list("a1", "b1", "a3"), mStarted);
+    }
+
+    @Test
+    public void rejected_failsTheTaskAndFreesTheSlot() {
+        HostScheduler scheduler = new HostScheduler(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        }, 1, 1, new Histogram());
+        FakeTask task = execute(scheduler, "a", "a", DownloadRequest.PRIORITY_MEDIUM);
+
+        assertNotNull(task.error);
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getRunningCount("a"));
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void shutdown_rejectsNewTasks() {
+        HostScheduler scheduler = scheduler(1, 0, 1);
+        scheduler.shutdown();
+        execute(scheduler, "a", "a", DownloadRequest.PRIORITY_MEDIUM);
+    }
+
+    private HostScheduler scheduler(int maxRunning, int maxLoopRunning, int maxPerHost) {
+        return new HostScheduler(INLINE, maxRunning, maxLoopRunning, maxPerHost, new Histogram());
+    }
+
+    private FakeTask execute(HostScheduler scheduler, String name, String host, int priority) {
+        return execute(scheduler, name, host, priority, false);
+    }
+
+    private FakeTask execute(HostScheduler scheduler, String name, String host, int priority,
+                             boolean onLoop) {
+        FakeTask task = task(name, priority);
+        scheduler.execute(new TaskRunnable(task), host, priority, onLoop);
+        return task;
+    }
+
+    private FakeTask task(String name, int priority) {
+        DownloadRequest req = new DownloadRequest(null, mNextId++, priority, "dir", name, 0, 0, 0);
+        return new FakeTask(req, name);
+    }
+
+    /**
+     * @return the task started last
+     */
+    private FakeTask last() {
+        return mTasks.get(mStarted.get(mStarted.size() - 1));
+    }
+
+    private static List<String> list(String... names) {
+        List<String> list = new ArrayList<>();
+        for (String name : names) list.add(name);
+        return list;
+    }
+
+    private class FakeTask extends Task<DownloadRequest> {
+        final String name;
+        Exception error;
+
+        FakeTask(DownloadRequest req, String name) {
+            super(req, null);
+            this.name = name;
+            mTasks.put(name, this);
+        }
+
+        @Override
+        public void execute() {
+            mStarted.add(name);
+        }
+
+        @Override
+        public boolean isAsynchronous() {
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void failed(Exception e) {
+            error = e;
+        }
+
+        @Override
+        public String getTaskName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MirrorSelectorTest {
+    private final Source a = source("http://a/file");
+    private final Source b = source("http://b/file");
+    private final Source c = source("http://c/file");
+
+    @Test
+    public void singleMirror_isAlwaysPicked() {
+        MirrorSelector selector = new MirrorSelector(new Source[]{a});
+        assertSame(a, selector.next());
+        assertSame(a, selector.nextExcept(a));
+    }
+
+    @Test
+    public void unmeasured_takeTurns() {
+        MirrorSelector selector = new MirrorSelector(new Source[]{a, b, c});
+        for (int i = 0; i < 3; i++) {
+            assertSame(a, selector.next());
+            assertSame(b, selector.next());
+            assertSame(c, selector.next());
+        }
+    }
+
+    @Test
+    public void picks_followThroughput() {
+        MirrorSelector selector = new MirrorSelector(new Source[]{a, b});
+        selector.record(a, 3072, 1); // 3000 KB/s
+        selector.record(b, 1024, 1); // 1000 KB/s
+        assertArrayEquals(new int[]{300, 100}, count(selector, 400, a, b));
+    }
+
+    @Test
+    public void unmeasured_takesTheAverageWeight() {
+        MirrorSelector selector = new MirrorSelector(new Source[]{a, b});
+        selector.record(a, 1024, 1);
+        assertArrayEquals(new int[]{50, 50}, count(selector, 100, a, b));
+    }
+
+    @Test
+    public void failed_isSkipped() {
+        MirrorSelector selector = new MirrorSelector(new Source[]{a, b, c});
+        selector.fail(a);
+        assertArrayEquals(new int[]{0, 5, 5}, count(selector, 10, a, b, c));
+    }
+
+    @Test
+    public void record_clearsTheFailure() {
+        MirrorSelector selector = new MirrorSelector(new Source[]{a, b});
+        selector.fail(a);
+        selector.record(a, 1024, 1);
+        assertEquals(5, count(selector, 10, a, b)[0]);
+    }
+
+    @Test
+    public void allFailed_stillPicked() {
+        MirrorSelector selector = new MirrorSelector(new Source[]{a, b});
+        selector.fail(a);
+        selector.fail(b);
+        assertArrayEquals(new int[]{5, 5}, count(selector, 10, a, b));
+        // the excluded one is avoided even then.
+        assertSame(b, selector.nextExcept(a));
+        assertSame(b, selector.nextExcept(a));
+    }
+
+    @Test
+    public void nextExcept_avoidsTheGivenMirror() {
+        MirrorSelector selector = new MirrorSelector(new Source[]{a, b, c});
+        for (int i = 0; i < 10; i++) {
+            assertNotSame(b, selector.nextExcept(b));
+        }
+        // found by url as well
+        assertNotSame(b, selector.nextExcept(source("http://b/file")));
+    }
+
+    @Test
+    public void throughput_isSmoothed() {
+        MirrorSelector selector = new MirrorSelector(new Source[]{a, b});
+        assertEquals(0, selector.throughput(a));
+        selector.record(a, 2048, 2);
+        assertEquals(1024000, selector.throughput(a));
+        selector.record(a, 4096, 2);
+        assertEquals(1331200, selector.throughput(a));
+        assertEquals(0, selector.throughput(source("http://d/file")));
+    }
+
+    private static int[] count(MirrorSelector selector, int picks, Source... sources) {
+        int[] counts = new int[sources.length];
+        for (int i = 0; i < picks; i++) {
+            Source s = selector.next();
+            for (int k = 0; k < sources.length; k++) {
+                if (sources[k] == s) counts[k]++;
+            }
+        }
+        return counts;
+    }
+
+    private static Source source(String url) {
+        return new Source<>(url, null);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PermitExecutorTest {
+    private final List<String> mRan = Collections.synchronizedList(new ArrayList<String>());
+    private long mNextId = 1;
+
+    @Test
+    public void runsAtMostPermitsAtATime() throws Exception {
+        PermitExecutor executor = new PermitExecutor(Executors.newCachedThreadPool(), 2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        for (int i = 0; i < 6; i++) {
+            executor.execute(new TaskRunnable(new FakeTask(request(DownloadRequest.PRIORITY_MEDIUM), "t" + i) {
+                @Override
+                public void execute() {
+                    int n = running.incrementAndGet();
+                    while (true) {
+                        int max = maxRunning.get();
+                        if (n <= max || maxRunning.compareAndSet(max, n)) break;
+                    }
+                    sleep(20);
+                    running.decrementAndGet();
+                    super.execute();
+                }
+            }));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(executor.isTerminated());
+        assertEquals(6, mRan.size());
+        assertTrue("max " + maxRunning, maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void queuedTasks_runInPriorityOrder() throws Exception {
+        PermitExecutor executor = new PermitExecutor(Executors.newCachedThreadPool(), 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new TaskRunnable(new FakeTask(request(DownloadRequest.PRIORITY_MEDIUM), "blocker") {
+            @Override
+            public void execute() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                super.execute();
+            }
+        }));
+        executor.execute(new TaskRunnable(new FakeTask(request(DownloadRequest.PRIORITY_LOW), "low")));
+        executor.execute(new TaskRunnable(new FakeTask(request(DownloadRequest.PRIORITY_HIGH), "high")));
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(list("blocker", "high", "low"), mRan);
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void incomparableTask_isRejected() {
+        PermitExecutor executor = new PermitExecutor(Executors.newCachedThreadPool(), 1);
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void backendRejection_failsTheTask() {
+        ExecutorService backend = Executors.newCachedThreadPool();
+        backend.shutdown();
+        PermitExecutor executor = new PermitExecutor(backend, 1);
+        FakeTask task = new FakeTask(request(DownloadRequest.PRIORITY_MEDIUM), "t");
+        final AtomicInteger done = new AtomicInteger();
+        task.setDoneHook(new Runnable() {
+            @Override
+            public void run() {
+                done.incrementAndGet();
+            }
+        });
+
+        executor.execute(new TaskRunnable(task));
+        assertNotNull(task.error);
+        assertEquals(1, done.get());
+        assertTrue(mRan.isEmpty());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void shutdown_rejectsNewTasks() {
+        PermitExecutor executor = new PermitExecutor(Executors.newCachedThreadPool(), 1);
+        executor.shutdown();
+        executor.execute(new TaskRunnable(new FakeTask(request(DownloadRequest.PRIORITY_MEDIUM), "t")));
+    }
+
+    private DownloadRequest request(int priority) {
+        return new DownloadRequest(null, mNextId++, priority, "dir", "file", 0, 0, 0);
+    }
+
+    private static List<String> list(String... names) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, names);
+        return list;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private class FakeTask extends Task<DownloadRequest> {
+        final String name;
+        volatile Exception error;
+
+        FakeTask(DownloadRequest req, String name) {
+            super(req, null);
+            this.name = name;
+        }
+
+        @Override
+        public void execute() {
+            mRan.add(name);
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void failed(Exception e) {
+            error = e;
+        }
+
+        @Override
+        public String getTaskName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Write throughput of a temp file with each preallocation strategy. Like the block tasks,
+ * threads write their own ranges of the file in chunks at the same time, then it is synced.
+ * Not a unit test, run it on the disk to measure:
+ * <pre>
+ * java -cp &lt;classes&gt; com.alberwall.downloader.PreallocatorBenchmark [dir] [MB] [threads] [rounds]
+ * </pre>
+ * The time of each round is the preallocation plus the writes and the sync, the median of
+ * the rounds is printed.
+ */
+public class PreallocatorBenchmark {
+    private static final int CHUNK = 64 * 1024;
+    private static final String[] NAMES = {"none", "set-length", "zero-fill", "native"};
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        long length = (args.length > 1 ? Long.parseLong(args[1]) : 256) << 20;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        System.out.println("dir=" + dir + " length=" + (length >> 20) + "MB threads=" + threads
+                + " rounds=" + rounds);
+        for (int strategy = AwDownloader.PREALLOCATE_NONE;
+             strategy <= AwDownloader.PREALLOCATE_NATIVE; strategy++) {
+            long[] prepare = new long[rounds];
+            long[] total = new long[rounds];
+            for (int i = 0; i < rounds; i++) {
+                long[] times = round(dir, length, threads, strategy);
+                prepare[i] = times[0];
+                total[i] = times[1];
+            }
+            long median = median(total);
+            System.out.println(String.format("%-10s preallocate=%5dms total=%5dms %7.1fMB/s",
+                    NAMES[strategy], median(prepare) / 1000000, median / 1000000,
+                    length * 1e9 / median / (1 << 20)));
+        }
+    }
+
+    /**
+     * @return ns of the preallocation and of the whole round
+     */
+    private static long[] round(File dir, final long length, int threads, int strategy)
+            throws Exception {
+        DownloadRequest req = new DownloadRequest(null, 0, 0, dir.getPath(),
+                "aw-bench.bin", 0, length, 0);
+        File tmp = req.tmpFile;
+        Utils.deleteFile(tmp);
+        try {
+            long start = System.nanoTime();
+            if (!tmp.createNewFile()) throw new IOException("Can not create " + tmp);
+            Preallocator.preallocate(req, strategy);
+            long prepared = System.nanoTime();
+
+            RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+            try {
+                write(file.getChannel(), length, threads);
+                file.getChannel().force(false);
+            } finally {
+                Utils.closeSafely(file);
+            }
+            return new long[]{prepared - start, System.nanoTime() - start};
+        } finally {
+            Utils.deleteFile(tmp);
+        }
+    }
+
+    private static void write(final FileChannel channel, final long length, final int threads)
+            throws Exception {
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final AtomicReference<IOException> error = new AtomicReference<>();
+        final long blockSize = length / threads;
+        for (int i = 0; i < threads; i++) {
+            final long from = i * blockSize;
+            final long to = i == threads - 1 ? length : from + blockSize;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK);
+                    try {
+                        for (long pos = from; pos < to; ) {
+                            buffer.clear();
+                            buffer.limit((int) Math.min(CHUNK, to - pos));
+                            while (buffer.hasRemaining()) {
+                                pos += channel.write(buffer, pos);
+                            }
+                        }
+                    } catch (IOException e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        latch.await();
+        if (null != error.get()) throw error.get();
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
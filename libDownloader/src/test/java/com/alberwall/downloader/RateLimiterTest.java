@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2018. Alberwall Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alberwall.downloader;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+    private static final long RATE = 1 << 20; // bytes per second
+
+    @Test
+    public void unlimited_neverWaits() {
+        RateLimiter limiter = new RateLimiter(0);
+        assertFalse(limiter.isLimited());
+        assertEquals(0, limiter.acquire(Long.MAX_VALUE / 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeRate_isRejected() {
+        new RateLimiter(-1);
+    }
+
+    @Test
+    public void burst_doesNotWait() {
+        RateLimiter limiter = new RateLimiter(RATE);
+        assertTrue(limiter.isLimited());
+        // 50ms of bytes fit in the burst of 100ms.
+        assertEquals(0, limiter.acquire(RATE / 20));
+    }
+
+    @Test
+    public void overBurst_waitsForTheRest() {
+        RateLimiter limiter = new RateLimiter(RATE);
+        long wait = TimeUnit.NANOSECONDS.toMillis(limiter.acquire(RATE));
+        // one second of bytes less the burst.
+        assertTrue("wait " + wait, wait > 800 && wait <= 900);
+    }
+
+    @Test
+    public void debt_addsUp() {
+        RateLimiter limiter = new RateLimiter(RATE);
+        limiter.acquire(RATE);
+        long wait = TimeUnit.NANOSECONDS.toMillis(limiter.acquire(RATE));
+        assertTrue("wait " + wait, wait > 1800 && wait <= 1900);
+    }
+
+    @Test
+    public void setRate_forgetsTheDebt() {
+        RateLimiter limiter = new RateLimiter(RATE);
+        assertTrue(limiter.acquire(10 * RATE) > 0);
+        limiter.setRate(RATE);
+        assertEquals(RATE, limiter.getRate());
+        assertEquals(0, limiter.acquire(RATE / 20));
+    }
+
+    @Test
+    public void setRate_zeroLiftsTheLimit() {
+        RateLimiter limiter = new RateLimiter(RATE);
+        limiter.acquire(10 * RATE);
+        limiter.setRate(0);
+        assertEquals(0, limiter.acquire(10 * RATE));
+    }
+}